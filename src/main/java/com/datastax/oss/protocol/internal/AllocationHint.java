@@ -0,0 +1,40 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal;
+
+/**
+ * What a buffer allocated with {@link PrimitiveCodec#allocate(int, AllocationHint)} will be used
+ * for. Implementations can use this to pick a memory pool, for example to serve the small,
+ * fixed-size headers and trailers from dedicated size classes.
+ */
+public enum AllocationHint {
+  /** A complete frame (header and body). */
+  FRAME,
+  /** A frame header ({@value FrameCodec#V3_ENCODED_HEADER_SIZE} bytes). */
+  FRAME_HEADER,
+  /** A frame body, or a message body without the frame header. */
+  FRAME_BODY,
+  /** A complete segment (header, payload and trailer). */
+  SEGMENT,
+  /** A segment header (6 bytes without compression, 8 with compression). */
+  SEGMENT_HEADER,
+  /** The payload of a self-contained segment. */
+  SEGMENT_PAYLOAD,
+  /** A segment trailer ({@value SegmentCodec#CRC32_LENGTH} bytes). */
+  SEGMENT_TRAILER,
+  /** Any other usage. */
+  OTHER,
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Delegates to another codec, except that {@code [bytes]} are read with {@link
+ * PrimitiveCodec#readBytesView(Object)}. This is what the frame codec passes to message decoders in
+ * {@link FrameCodec#decodeRetained(Object)}, so that cell values, custom payload values and paging
+ * states are views of the retained frame.
+ *
+ * <p>{@link #readBytesMap(Object)} is deliberately not delegated: the default implementation goes
+ * through {@link #readBytes(Object)}.
+ */
+class BytesViewPrimitiveCodec<B> implements PrimitiveCodec<B> {
+
+  private final PrimitiveCodec<B> delegate;
+
+  BytesViewPrimitiveCodec(PrimitiveCodec<B> delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public ByteBuffer readBytes(B source) {
+    return delegate.readBytesView(source);
+  }
+
+  @Override
+  public ByteBuffer readBytesView(B source) {
+    return delegate.readBytesView(source);
+  }
+
+  @Override
+  public int skipBytes(B source) {
+    return delegate.skipBytes(source);
+  }
+
+  @Override
+  public int readBytesInto(B source, ByteBuffer dest) {
+    return delegate.readBytesInto(source, dest);
+  }
+
+  @Override
+  public B allocate(int size) {
+    return delegate.allocate(size);
+  }
+
+  @Override
+  public B allocate(int size, AllocationHint hint) {
+    return delegate.allocate(size, hint);
+  }
+
+  @Override
+  public void release(B toRelease) {
+    delegate.release(toRelease);
+  }
+
+  @Override
+  public int sizeOf(B toMeasure) {
+    return delegate.sizeOf(toMeasure);
+  }
+
+  @Override
+  public B concat(B left, B right) {
+    return delegate.concat(left, right);
+  }
+
+  @Override
+  public void markReaderIndex(B source) {
+    delegate.markReaderIndex(source);
+  }
+
+  @Override
+  public void resetReaderIndex(B source) {
+    delegate.resetReaderIndex(source);
+  }
+
+  @Override
+  public byte readByte(B source) {
+    return delegate.readByte(source);
+  }
+
+  @Override
+  public int readInt(B source) {
+    return delegate.readInt(source);
+  }
+
+  @Override
+  public int readInt(B source, int offset) {
+    return delegate.readInt(source, offset);
+  }
+
+  @Override
+  public InetAddress readInetAddr(B source) {
+    return delegate.readInetAddr(source);
+  }
+
+  @Override
+  public long readLong(B source) {
+    return delegate.readLong(source);
+  }
+
+  @Override
+  public int readUnsignedShort(B source) {
+    return delegate.readUnsignedShort(source);
+  }
+
+  @Override
+  public byte[] readShortBytes(B source) {
+    return delegate.readShortBytes(source);
+  }
+
+  @Override
+  public String readString(B source) {
+    return delegate.readString(source);
+  }
+
+  @Override
+  public String readLongString(B source) {
+    return delegate.readLongString(source);
+  }
+
+  @Override
+  public B readRetainedSlice(B source, int sliceLength) {
+    return delegate.readRetainedSlice(source, sliceLength);
+  }
+
+  @Override
+  public void updateCrc(B source, CRC32 crc) {
+    delegate.updateCrc(source, crc);
+  }
+
+  @Override
+  public void updateCrc(B source, int offset, int length, CRC32 crc) {
+    delegate.updateCrc(source, offset, length, crc);
+  }
+
+  @Override
+  public void writeRawBytes(B source, B dest) {
+    delegate.writeRawBytes(source, dest);
+  }
+
+  @Override
+  public UUID readUuid(B source) {
+    return delegate.readUuid(source);
+  }
+
+  @Override
+  public List<String> readStringList(B source) {
+    return delegate.readStringList(source);
+  }
+
+  @Override
+  public Map<String, String> readStringMap(B source) {
+    return delegate.readStringMap(source);
+  }
+
+  @Override
+  public Map<String, List<String>> readStringMultimap(B source) {
+    return delegate.readStringMultimap(source);
+  }
+
+  @Override
+  public InetSocketAddress readInet(B source) {
+    return delegate.readInet(source);
+  }
+
+  @Override
+  public void writeByte(byte b, B dest) {
+    delegate.writeByte(b, dest);
+  }
+
+  @Override
+  public void writeInt(int i, B dest) {
+    delegate.writeInt(i, dest);
+  }
+
+  @Override
+  public void writeInetAddr(InetAddress address, B dest) {
+    delegate.writeInetAddr(address, dest);
+  }
+
+  @Override
+  public void writeLong(long l, B dest) {
+    delegate.writeLong(l, dest);
+  }
+
+  @Override
+  public void writeUnsignedShort(int i, B dest) {
+    delegate.writeUnsignedShort(i, dest);
+  }
+
+  @Override
+  public void writeString(String s, B dest) {
+    delegate.writeString(s, dest);
+  }
+
+  @Override
+  public void writeLongString(String s, B dest) {
+    delegate.writeLongString(s, dest);
+  }
+
+  @Override
+  public void writeUuid(UUID uuid, B dest) {
+    delegate.writeUuid(uuid, dest);
+  }
+
+  @Override
+  public void writeBytes(ByteBuffer bytes, B dest) {
+    delegate.writeBytes(bytes, dest);
+  }
+
+  @Override
+  public void writeBytes(byte[] bytes, B dest) {
+    delegate.writeBytes(bytes, dest);
+  }
+
+  @Override
+  public void writeShortBytes(byte[] bytes, B dest) {
+    delegate.writeShortBytes(bytes, dest);
+  }
+
+  @Override
+  public void writeStringList(List<String> l, B dest) {
+    delegate.writeStringList(l, dest);
+  }
+
+  @Override
+  public void writeStringMap(Map<String, String> m, B dest) {
+    delegate.writeStringMap(m, dest);
+  }
+
+  @Override
+  public void writeStringMultimap(Map<String, List<String>> m, B dest) {
+    delegate.writeStringMultimap(m, dest);
+  }
+
+  @Override
+  public void writeBytesMap(Map<String, ByteBuffer> m, B dest) {
+    delegate.writeBytesMap(m, dest);
+  }
+
+  @Override
+  public void writeInet(InetSocketAddress address, B dest) {
+    delegate.writeInet(address, dest);
+  }
+}
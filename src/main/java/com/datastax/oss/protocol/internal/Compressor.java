@@ -40,6 +40,20 @@ public interface Compressor<B> {
   /** Decompresses a payload that was compressed with {@link #compress(Object)}. */
   B decompress(B compressed);
 
+  /**
+   * Returns the uncompressed length encoded in a payload that was compressed with {@link
+   * #compress(Object)}, without consuming any data, or -1 if it can't be determined cheaply.
+   *
+   * <p>This allows {@link FrameCodec} to reject oversized frames before allocating the decompressed
+   * buffer. The default implementation returns -1, in which case the length is only checked after
+   * decompression: an oversized body is fully decompressed before it gets rejected. Implementations
+   * for formats that store the uncompressed length (such as LZ4 frame bodies, or Snappy's varint
+   * preamble) should override this method.
+   */
+  default int peekUncompressedLength(B compressed) {
+    return -1;
+  }
+
   /**
    * Compresses a payload using the "modern" format of protocol v5+ segments.
    *
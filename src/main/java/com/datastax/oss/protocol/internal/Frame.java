@@ -20,6 +20,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Frame {
   public static final Map<String, ByteBuffer> NO_PAYLOAD = Collections.emptyMap();
@@ -103,6 +104,10 @@ public class Frame {
   public final List<String> warnings;
   public final Message message;
 
+  // If the frame was decoded in retained mode or with a memory tracker, releases the underlying
+  // buffer and/or gives the bytes back to the tracker (null otherwise)
+  private final AtomicReference<Runnable> releaser;
+
   /**
    * This constructor is mainly intended for internal use by the frame codec. If you want to build
    * frames to pass for encoding, see {@link #forRequest(int, int, boolean, Map, Message)} or {@link
@@ -119,6 +124,32 @@ public class Frame {
       Map<String, ByteBuffer> customPayload,
       List<String> warnings,
       Message message) {
+    this(
+        protocolVersion,
+        beta,
+        streamId,
+        tracing,
+        tracingId,
+        size,
+        compressedSize,
+        customPayload,
+        warnings,
+        message,
+        null);
+  }
+
+  Frame(
+      int protocolVersion,
+      boolean beta,
+      int streamId,
+      boolean tracing,
+      UUID tracingId,
+      int size,
+      int compressedSize,
+      Map<String, ByteBuffer> customPayload,
+      List<String> warnings,
+      Message message,
+      Runnable releaser) {
     ProtocolErrors.check(
         customPayload.isEmpty() || protocolVersion >= 4, "Custom payloads require protocol V4");
     this.protocolVersion = protocolVersion;
@@ -131,5 +162,57 @@ public class Frame {
     this.customPayload = customPayload;
     this.warnings = warnings;
     this.message = message;
+    this.releaser = (releaser == null) ? null : new AtomicReference<>(releaser);
+  }
+
+  /**
+   * Whether this frame holds resources that have not been {@link #release() released} yet: it was
+   * decoded with {@link FrameCodec#decodeRetained(Object)} (its byte values are views of a retained
+   * buffer), or its size is accounted in a {@link RetainedMemoryTracker}.
+   */
+  public boolean isRetained() {
+    return releaser != null && releaser.get() != null;
+  }
+
+  /**
+   * If this frame was decoded with {@link FrameCodec#decodeRetained(Object)}, releases the buffer
+   * that its byte values are views of. After this call, the {@link ByteBuffer} values of the
+   * message and custom payload must not be accessed anymore.
+   *
+   * <p>If the frame was decoded with a {@link RetainedMemoryTracker}, gives its bytes back to it.
+   *
+   * <p>For other frames, or if the frame was already released, this is a no-op.
+   */
+  public void release() {
+    if (releaser != null) {
+      Runnable toRun = releaser.getAndSet(null);
+      if (toRun != null) {
+        toRun.run();
+      }
+    }
+  }
+
+  /**
+   * Returns a copy of this frame with a different stream id. The other fields, including the
+   * message, are shared with this instance.
+   *
+   * <p>This is typically used with {@link FrameCodec#preSerialize(Frame)}, to send the same message
+   * multiple times.
+   *
+   * <p>If this frame is {@link #isRetained() retained}, the copy is not: it must not outlive this
+   * instance, and only this instance should be released.
+   */
+  public Frame withStreamId(int newStreamId) {
+    return new Frame(
+        protocolVersion,
+        beta,
+        newStreamId,
+        tracing,
+        tracingId,
+        size,
+        compressedSize,
+        customPayload,
+        warnings,
+        message);
   }
 }
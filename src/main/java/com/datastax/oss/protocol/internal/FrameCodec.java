@@ -15,13 +15,20 @@
  */
 package com.datastax.oss.protocol.internal;
 
+import com.datastax.oss.protocol.internal.request.Execute;
+import com.datastax.oss.protocol.internal.response.Result;
 import com.datastax.oss.protocol.internal.util.Flags;
 import com.datastax.oss.protocol.internal.util.IntIntMap;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
 
 public class FrameCodec<B> {
 
@@ -34,118 +41,326 @@ public class FrameCodec<B> {
    */
   public static final int V3_ENCODED_HEADER_SIZE = 9;
 
+  /**
+   * The default maximum length of a decompressed frame body (256 MiB, the historical maximum frame
+   * size of the server). See {@link #withMaxDecompressedBodyLength(int)}.
+   */
+  public static final int DEFAULT_MAX_DECOMPRESSED_BODY_LENGTH = 256 * 1024 * 1024;
+
   /**
    * Builds a new instance with the default codecs for a client (encoding requests, decoding
    * responses).
+   *
+   * <p>The codec tables are built once, the first time this method is called, and shared by all the
+   * instances it returns.
    */
   public static <B> FrameCodec<B> defaultClient(
       PrimitiveCodec<B> primitiveCodec, Compressor<B> compressor) {
-    return new FrameCodec<>(
-        primitiveCodec,
-        compressor,
-        new ProtocolV3ClientCodecs(),
-        new ProtocolV4ClientCodecs(),
-        new ProtocolV5ClientCodecs(),
-        new ProtocolV6ClientCodecs());
+    return new FrameCodec<>(primitiveCodec, compressor, DefaultClientTables.INSTANCE);
   }
 
   /**
    * Builds a new instance with the default codecs for a server (decoding requests, encoding
    * responses).
+   *
+   * <p>The codec tables are built once, the first time this method is called, and shared by all the
+   * instances it returns.
    */
   public static <B> FrameCodec<B> defaultServer(
       PrimitiveCodec<B> primitiveCodec, Compressor<B> compressor) {
-    return new FrameCodec<>(
-        primitiveCodec,
-        compressor,
-        new ProtocolV3ServerCodecs(),
-        new ProtocolV4ServerCodecs(),
-        new ProtocolV5ServerCodecs(),
-        new ProtocolV6ServerCodecs());
+    return new FrameCodec<>(primitiveCodec, compressor, DefaultServerTables.INSTANCE);
   }
 
   private final PrimitiveCodec<B> primitiveCodec;
+  // Passed to message decoders in retained mode, so that [bytes] are read as views
+  private final PrimitiveCodec<B> bytesViewCodec;
   private final Compressor<B> compressor;
+  private final CodecTables tables;
   private final IntIntMap<Message.Codec> encoders;
   private final IntIntMap<Message.Codec> decoders;
+  // If this instance is a view for a single version, the codecs of that version indexed by opcode
+  private final int boundVersion;
+  private final Message.Codec[] boundEncoders;
+  private final Message.Codec[] boundDecoders;
+  private final int maxDecompressedBodyLength;
 
   public FrameCodec(
       PrimitiveCodec<B> primitiveCodec, Compressor<B> compressor, CodecGroup... codecGroups) {
+    this(primitiveCodec, compressor, new CodecTables(codecGroups));
+  }
+
+  private FrameCodec(
+      PrimitiveCodec<B> primitiveCodec, Compressor<B> compressor, CodecTables tables) {
+    this(primitiveCodec, compressor, tables, -1, DEFAULT_MAX_DECOMPRESSED_BODY_LENGTH);
+  }
+
+  private FrameCodec(
+      PrimitiveCodec<B> primitiveCodec,
+      Compressor<B> compressor,
+      CodecTables tables,
+      int boundVersion,
+      int maxDecompressedBodyLength) {
     ProtocolErrors.check(primitiveCodec != null, "primitiveCodec can't be null");
     ProtocolErrors.check(compressor != null, "compressor can't be null, use Compressor.none()");
     this.primitiveCodec = primitiveCodec;
+    this.bytesViewCodec = new BytesViewPrimitiveCodec<>(primitiveCodec);
     this.compressor = compressor;
-    IntIntMap.Builder<Message.Codec> encodersBuilder = IntIntMap.builder();
-    IntIntMap.Builder<Message.Codec> decodersBuilder = IntIntMap.builder();
-    CodecGroup.Registry registry =
-        new CodecGroup.Registry() {
-          @Override
-          public CodecGroup.Registry addCodec(Message.Codec codec) {
-            addEncoder(codec);
-            addDecoder(codec);
-            return this;
-          }
-
-          @Override
-          public CodecGroup.Registry addEncoder(Message.Codec codec) {
-            encodersBuilder.put(codec.protocolVersion, codec.opcode, codec);
-            return this;
-          }
-
-          @Override
-          public CodecGroup.Registry addDecoder(Message.Codec codec) {
-            decodersBuilder.put(codec.protocolVersion, codec.opcode, codec);
-            return this;
-          }
-        };
-    for (CodecGroup codecGroup : codecGroups) {
-      codecGroup.registerCodecs(registry);
+    this.tables = tables;
+    this.encoders = tables.encoders;
+    this.decoders = tables.decoders;
+    this.boundVersion = boundVersion;
+    this.maxDecompressedBodyLength = maxDecompressedBodyLength;
+    if (boundVersion < 0) {
+      this.boundEncoders = null;
+      this.boundDecoders = null;
+    } else {
+      Message.Codec[][] versionTables = tables.forVersion(boundVersion);
+      this.boundEncoders = versionTables[0];
+      this.boundDecoders = versionTables[1];
     }
-    this.encoders = encodersBuilder.build();
-    this.decoders = decodersBuilder.build();
   }
 
-  /** Allocates a new buffer and encodes the given frame into it. */
-  public B encode(Frame frame) {
-    int protocolVersion = frame.protocolVersion;
+  /**
+   * Returns a view of this codec for a single protocol version, typically the version negotiated by
+   * a connection.
+   *
+   * <p>The view shares the same primitive codec, compressor and message codecs, but it resolves
+   * message codecs with a single array access indexed by opcode, instead of a lookup by (version,
+   * opcode). It rejects frames with any other version.
+   */
+  public FrameCodec<B> forVersion(int protocolVersion) {
+    if (protocolVersion == boundVersion) {
+      return this;
+    }
+    ProtocolErrors.check(protocolVersion >= 0, "Invalid protocol version %d", protocolVersion);
+    return new FrameCodec<>(
+        primitiveCodec, compressor, tables, protocolVersion, maxDecompressedBodyLength);
+  }
 
+  /**
+   * Returns a copy of this codec that rejects compressed frames whose body would decompress to more
+   * than the given length. Typically, each connection uses its own view, with a limit that reflects
+   * how much memory it can devote to a single response.
+   *
+   * <p>If the compressor can {@link Compressor#peekUncompressedLength(Object) peek} at the declared
+   * length, the frame is rejected before anything is allocated; otherwise, it is rejected right
+   * after decompression. In both cases, an {@link IllegalArgumentException} is thrown, and the
+   * connection should be closed.
+   *
+   * <p>Since a connection decodes its frames one at a time, this bounds the decompression buffer
+   * that it holds during a decode. Note that {@link RetainedMemoryTracker} does not cover that
+   * buffer: it only accounts frames once they are decoded.
+   *
+   * <p>The default is {@link #DEFAULT_MAX_DECOMPRESSED_BODY_LENGTH}.
+   */
+  public FrameCodec<B> withMaxDecompressedBodyLength(int maxDecompressedBodyLength) {
     ProtocolErrors.check(
-        protocolVersion >= ProtocolConstants.Version.V4 || frame.customPayload.isEmpty(),
-        "Custom payload is not supported in protocol v%d",
-        protocolVersion);
+        maxDecompressedBodyLength >= 0,
+        "maxDecompressedBodyLength must be positive (got %d)",
+        maxDecompressedBodyLength);
+    return (maxDecompressedBodyLength == this.maxDecompressedBodyLength)
+        ? this
+        : new FrameCodec<>(
+            primitiveCodec, compressor, tables, boundVersion, maxDecompressedBodyLength);
+  }
+
+  /** The maximum length of a decompressed frame body. */
+  public int maxDecompressedBodyLength() {
+    return maxDecompressedBodyLength;
+  }
+
+  private Message.Codec lookupEncoder(int protocolVersion, int opcode) {
+    return (boundVersion < 0)
+        ? encoders.get(protocolVersion, opcode)
+        : lookupBound(boundEncoders, protocolVersion, opcode);
+  }
+
+  private Message.Codec lookupDecoder(int protocolVersion, int opcode) {
+    return (boundVersion < 0)
+        ? decoders.get(protocolVersion, opcode)
+        : lookupBound(boundDecoders, protocolVersion, opcode);
+  }
+
+  private Message.Codec lookupBound(Message.Codec[] codecs, int protocolVersion, int opcode) {
+    checkBoundVersion(protocolVersion);
+    return (opcode >= 0 && opcode < codecs.length) ? codecs[opcode] : null;
+  }
+
+  private void checkBoundVersion(int protocolVersion) {
     ProtocolErrors.check(
-        protocolVersion >= ProtocolConstants.Version.V4 || frame.warnings.isEmpty(),
-        "Warnings are not supported in protocol v%d",
+        protocolVersion == boundVersion,
+        "This codec only supports protocol v%d (got v%d)",
+        boundVersion,
         protocolVersion);
+  }
+
+  // Visible for testing
+  boolean sharesCodecTablesWith(FrameCodec<?> other) {
+    return this.tables == other.tables;
+  }
+
+  /** Allocates a new buffer and encodes the given frame into it. */
+  public B encode(Frame frame) {
+    checkFeaturesSupported(frame);
 
     Message.Codec messageEncoder = getMessageEncoder(frame);
 
     int headerSize = encodedHeaderSize(frame);
-    int bodySize = encodedBodySize(frame);
+    int bodySize = encodedBodySize(frame, messageEncoder);
     int flags = computeFlags(frame);
     if (!Flags.contains(flags, ProtocolConstants.FrameFlag.COMPRESSED)) {
       // No compression: we can optimize and do everything with a single allocation
-      B dest = primitiveCodec.allocate(headerSize + bodySize);
-      encodeInto(frame, bodySize, flags, messageEncoder, dest);
+      B dest = primitiveCodec.allocate(headerSize + bodySize, AllocationHint.FRAME);
+      try {
+        encodeInto(frame, bodySize, flags, messageEncoder, dest);
+      } catch (RuntimeException e) {
+        primitiveCodec.release(dest);
+        throw e;
+      }
       return dest;
     } else {
       // We need to compress first in order to know the body size
       // 1) Encode uncompressed body
-      B uncompressedBody = primitiveCodec.allocate(bodySize);
-      encodeBodyInto(frame, messageEncoder, uncompressedBody);
-
-      // 2) Compress and measure size, discard uncompressed buffer
-      B compressedBody = compressor.compress(uncompressedBody);
-      primitiveCodec.release(uncompressedBody);
+      B uncompressedBody = primitiveCodec.allocate(bodySize, AllocationHint.FRAME_BODY);
+      B compressedBody;
+      try {
+        encodeBodyInto(frame, messageEncoder, uncompressedBody);
+
+        // 2) Compress and measure size
+        compressedBody = compressor.compress(uncompressedBody);
+      } finally {
+        // discard uncompressed buffer
+        primitiveCodec.release(uncompressedBody);
+      }
       int compressedBodySize = primitiveCodec.sizeOf(compressedBody);
 
       // 3) Encode final frame
-      B header = primitiveCodec.allocate(headerSize);
-      encodeHeaderInto(frame, flags, compressedBodySize, header);
+      B header = primitiveCodec.allocate(headerSize, AllocationHint.FRAME_HEADER);
+      try {
+        encodeHeaderInto(frame, flags, compressedBodySize, header);
+      } catch (RuntimeException e) {
+        primitiveCodec.release(header);
+        primitiveCodec.release(compressedBody);
+        throw e;
+      }
       return primitiveCodec.concat(header, compressedBody);
     }
   }
 
+  /**
+   * Allocates a new buffer and encodes the given frames into it, back to back. This is intended for
+   * protocol v4 and below, where frames are written individually on the wire; it is equivalent to
+   * concatenating the results of {@link #encode(Frame)}.
+   *
+   * <p>Without compression, all the frames are sized first, and then encoded into a single buffer.
+   * With compression, each frame must be compressed separately, so they are encoded one by one and
+   * then concatenated.
+   *
+   * <p>If any frame fails to encode, the buffers allocated so far are released before the error is
+   * rethrown.
+   */
+  public B encodeAll(List<Frame> frames) {
+    int frameCount = frames.size();
+    if (frameCount == 1) {
+      return encode(frames.get(0));
+    }
+    if (compressor instanceof NoopCompressor) {
+      Message.Codec[] messageEncoders = new Message.Codec[frameCount];
+      int[] bodySizes = new int[frameCount];
+      int totalSize = 0;
+      for (int i = 0; i < frameCount; i++) {
+        Frame frame = frames.get(i);
+        checkFeaturesSupported(frame);
+        messageEncoders[i] = getMessageEncoder(frame);
+        bodySizes[i] = encodedBodySize(frame, messageEncoders[i]);
+        totalSize += encodedHeaderSize(frame) + bodySizes[i];
+      }
+      B dest = primitiveCodec.allocate(totalSize, AllocationHint.FRAME);
+      try {
+        for (int i = 0; i < frameCount; i++) {
+          Frame frame = frames.get(i);
+          encodeInto(frame, bodySizes[i], computeFlags(frame), messageEncoders[i], dest);
+        }
+      } catch (RuntimeException e) {
+        primitiveCodec.release(dest);
+        throw e;
+      }
+      return dest;
+    } else {
+      B result = null;
+      try {
+        for (Frame frame : frames) {
+          B encoded = encode(frame);
+          if (result == null) {
+            result = encoded;
+          } else {
+            try {
+              result = primitiveCodec.concat(result, encoded);
+            } catch (RuntimeException e) {
+              primitiveCodec.release(encoded);
+              throw e;
+            }
+          }
+        }
+      } catch (RuntimeException e) {
+        // Don't leak the frames that were already encoded
+        if (result != null) {
+          primitiveCodec.release(result);
+        }
+        throw e;
+      }
+      return (result == null) ? primitiveCodec.allocate(0) : result;
+    }
+  }
+
+  private void checkFeaturesSupported(Frame frame) {
+    int protocolVersion = frame.protocolVersion;
+    ProtocolErrors.check(
+        protocolVersion >= ProtocolConstants.Version.V4 || frame.customPayload.isEmpty(),
+        "Custom payload is not supported in protocol v%d",
+        protocolVersion);
+    ProtocolErrors.check(
+        protocolVersion >= ProtocolConstants.Version.V4 || frame.warnings.isEmpty(),
+        "Warnings are not supported in protocol v%d",
+        protocolVersion);
+  }
+
+  /**
+   * Encodes the message of the given frame once, and returns a copy of the frame where the message
+   * is replaced by the resulting {@link RawMessage}.
+   *
+   * <p>The returned frame can then be encoded any number of times (with {@link #encode(Frame)},
+   * {@link #encodeInto(Frame, int, Object)} or a {@link SegmentBuilder}), without running the
+   * message codec again: the body bytes are copied as-is. Use {@link Frame#withStreamId(int)} to
+   * send it with a different stream id each time, for example for speculative executions or
+   * retries.
+   *
+   * <p>The caller is responsible for releasing the raw message's body once the last copy has been
+   * encoded.
+   */
+  public Frame preSerialize(Frame frame) {
+    if (frame.message instanceof RawMessage) {
+      return frame;
+    }
+    Message.Codec encoder = getMessageEncoder(frame);
+    int bodyLength = encoder.encodedSize(frame.message);
+    B body = primitiveCodec.allocate(bodyLength, AllocationHint.FRAME_BODY);
+    encoder.encode(body, frame.message, primitiveCodec);
+    RawMessage<B> raw =
+        new RawMessage<>(frame.message.isResponse, frame.message.opcode, body, bodyLength);
+    return new Frame(
+        frame.protocolVersion,
+        frame.beta,
+        frame.streamId,
+        frame.tracing,
+        frame.tracingId,
+        frame.size,
+        frame.compressedSize,
+        frame.customPayload,
+        frame.warnings,
+        raw);
+  }
+
   /**
    * Encodes the given frame into an existing buffer.
    *
@@ -167,7 +382,15 @@ public class FrameCodec<B> {
   }
 
   private Message.Codec getMessageEncoder(Frame frame) {
-    Message.Codec encoder = encoders.get(frame.protocolVersion, frame.message.opcode);
+    if (frame.message instanceof RawMessage) {
+      // Already encoded, no need for a registered codec. But a version-specific view must still
+      // reject other versions.
+      if (boundVersion >= 0) {
+        checkBoundVersion(frame.protocolVersion);
+      }
+      return RawMessage.Codec.ENCODER;
+    }
+    Message.Codec encoder = lookupEncoder(frame.protocolVersion, frame.message.opcode);
     ProtocolErrors.check(
         encoder != null,
         "Unsupported opcode %s in protocol v%d",
@@ -200,14 +423,14 @@ public class FrameCodec<B> {
 
   private void encodeInto(
       Frame frame, int bodySize, int flags, Message.Codec messageEncoder, B dest) {
+    if (bodySize < 0) {
+      bodySize = encodedBodySize(frame, messageEncoder);
+    }
     encodeHeaderInto(frame, flags, bodySize, dest);
     encodeBodyInto(frame, messageEncoder, dest);
   }
 
   private void encodeHeaderInto(Frame frame, int flags, int bodySize, B dest) {
-    if (bodySize < 0) {
-      bodySize = encodedBodySize(frame);
-    }
 
     int versionAndDirection = frame.protocolVersion;
     if (frame.message.isResponse) {
@@ -226,7 +449,13 @@ public class FrameCodec<B> {
     encodeTracingId(frame.tracingId, dest);
     encodeCustomPayload(frame.customPayload, dest);
     encodeWarnings(frame.warnings, dest);
-    messageEncoder.encode(dest, frame.message, primitiveCodec);
+    if (messageEncoder.getClass() == Execute.Codec.class) {
+      // EXECUTE is the most frequent request: give it a dedicated, monomorphic call site (the
+      // exact class check allows the JIT to inline it).
+      ((Execute.Codec) messageEncoder).encode(dest, frame.message, primitiveCodec);
+    } else {
+      messageEncoder.encode(dest, frame.message, primitiveCodec);
+    }
   }
 
   private void encodeTracingId(UUID tracingId, B dest) {
@@ -257,6 +486,10 @@ public class FrameCodec<B> {
    * payload and/or warnings if relevant).
    */
   public int encodedBodySize(Frame frame) {
+    return encodedBodySize(frame, getMessageEncoder(frame));
+  }
+
+  private int encodedBodySize(Frame frame, Message.Codec encoder) {
     int size = 0;
     if (frame.tracingId != null) {
       size += PrimitiveSizes.UUID;
@@ -267,8 +500,6 @@ public class FrameCodec<B> {
     if (!frame.warnings.isEmpty()) {
       size += PrimitiveSizes.sizeOfStringList(frame.warnings);
     }
-
-    Message.Codec encoder = getMessageEncoder(frame);
     return size + encoder.encodedSize(frame.message);
   }
 
@@ -282,6 +513,112 @@ public class FrameCodec<B> {
     return primitiveCodec.readInt(source, V3_ENCODED_HEADER_SIZE - 4);
   }
 
+  /**
+   * Decodes the header of the next frame contained in the given buffer, without decoding the body.
+   *
+   * <p>The buffer must contain at least the frame's header. This method will not consume any data
+   * from the buffer. It does not allocate anything either, the fields are stored in the provided
+   * instance, which can be reused across calls.
+   *
+   * @return {@code into}, for convenience.
+   */
+  public FrameHeader decodeHeader(B source, FrameHeader into) {
+    primitiveCodec.markReaderIndex(source);
+    int directionAndVersion = primitiveCodec.readByte(source);
+    int flags = primitiveCodec.readByte(source) & 0xFF;
+    int streamId = readStreamId(source);
+    int opcode = primitiveCodec.readByte(source);
+    int length = primitiveCodec.readInt(source);
+    primitiveCodec.resetReaderIndex(source);
+    into.set(
+        directionAndVersion & 0b0111_1111,
+        (directionAndVersion & 0b1000_0000) == 0b1000_0000,
+        flags,
+        streamId,
+        opcode,
+        length);
+    return into;
+  }
+
+  /**
+   * Re-encodes the next frame of the given buffer with a different stream id, without decoding its
+   * body. This is intended for proxies that forward frames between connections.
+   *
+   * <p>The buffer must contain at least one complete frame. This method consumes it (and only it).
+   * The returned buffer is made of a new header, followed by a retained slice of the original body:
+   * the body bytes are forwarded untouched, whether they are compressed or not.
+   */
+  public B relay(B source, int newStreamId) {
+    int directionAndVersion = primitiveCodec.readByte(source);
+    int flags = primitiveCodec.readByte(source);
+    readStreamId(source);
+    int opcode = primitiveCodec.readByte(source);
+    int length = primitiveCodec.readInt(source);
+
+    B header = primitiveCodec.allocate(V3_ENCODED_HEADER_SIZE, AllocationHint.FRAME_HEADER);
+    primitiveCodec.writeByte((byte) directionAndVersion, header);
+    primitiveCodec.writeByte((byte) flags, header);
+    primitiveCodec.writeUnsignedShort(newStreamId & 0xFFFF, header);
+    primitiveCodec.writeByte((byte) opcode, header);
+    primitiveCodec.writeInt(length, header);
+    return primitiveCodec.concat(header, primitiveCodec.readRetainedSlice(source, length));
+  }
+
+  /**
+   * Relays all the frames of a buffer (for example the payload of a self-contained {@link
+   * Segment}), as described in {@link #relay(Object, int)}.
+   *
+   * <p>This consumes the whole buffer. The frames are returned in the same order, in a single
+   * buffer of the same length, suitable for the payload of an outgoing segment.
+   *
+   * @param streamIdMapper computes the new stream id of each frame, from the original one.
+   */
+  public B relayAll(B source, IntUnaryOperator streamIdMapper) {
+    FrameHeader header = new FrameHeader();
+    B result = null;
+    while (primitiveCodec.sizeOf(source) > 0) {
+      decodeHeader(source, header);
+      B frame = relay(source, streamIdMapper.applyAsInt(header.streamId()));
+      result = (result == null) ? frame : primitiveCodec.concat(result, frame);
+    }
+    return (result == null) ? primitiveCodec.allocate(0) : result;
+  }
+
+  /**
+   * Decodes all the frames contained in the given buffer, for example the payload of a
+   * self-contained {@link Segment}.
+   *
+   * <p>The layout of the whole buffer is checked before anything is decoded: it must contain a
+   * sequence of complete frames, with no trailing bytes. If that is not the case, an {@link
+   * IllegalArgumentException} is thrown, and no frame is passed to the consumer. Otherwise, the
+   * frames are decoded and passed to the consumer in order, and the buffer is fully consumed.
+   */
+  public void decodeAll(B source, Consumer<Frame> consumer) {
+    int size = primitiveCodec.sizeOf(source);
+    int frameCount = 0;
+    int offset = 0;
+    while (offset < size) {
+      ProtocolErrors.check(
+          size - offset >= V3_ENCODED_HEADER_SIZE,
+          "Incomplete frame header at offset %d (%d bytes remaining)",
+          offset,
+          size - offset);
+      int bodySize = primitiveCodec.readInt(source, offset + V3_ENCODED_HEADER_SIZE - 4);
+      ProtocolErrors.check(
+          bodySize >= 0 && bodySize <= size - offset - V3_ENCODED_HEADER_SIZE,
+          "Invalid body size %d for frame at offset %d (%d bytes remaining)",
+          bodySize,
+          offset,
+          size - offset);
+      offset += V3_ENCODED_HEADER_SIZE + bodySize;
+      frameCount += 1;
+    }
+    DecoderCache decoderCache = new DecoderCache();
+    for (int i = 0; i < frameCount; i++) {
+      consumer.accept(decode(source, decoderCache, false, null));
+    }
+  }
+
   /**
    * Decodes the next frame from the given buffer.
    *
@@ -289,6 +626,52 @@ public class FrameCodec<B> {
    * (which will not be consumed).
    */
   public Frame decode(B source) {
+    return decode(source, null, false, null);
+  }
+
+  /**
+   * Decodes the next frame like {@link #decode(Object)}, and accounts its size in the given
+   * tracker. The caller must invoke {@link Frame#release()} once it's done with the frame, to give
+   * the bytes back.
+   */
+  public Frame decode(B source, RetainedMemoryTracker tracker) {
+    ProtocolErrors.check(tracker != null, "tracker can't be null");
+    return decode(source, null, false, tracker);
+  }
+
+  /**
+   * Decodes the next frame like {@link #decode(Object)}, but without copying {@code [bytes]}
+   * values: the frame retains a slice of {@code source} (or its decompressed body, if the frame was
+   * compressed), and the cell values, custom payload values and paging state of the message are
+   * views of it (see {@link PrimitiveCodec#readBytesView(Object)}).
+   *
+   * <p>This avoids a copy per cell when decoding large result sets. In exchange, the caller must
+   * invoke {@link Frame#release()} once it's done with the frame, and must not access its byte
+   * values after that. {@code source} itself can be released independently.
+   */
+  public Frame decodeRetained(B source) {
+    return decodeRetained(source, null);
+  }
+
+  /**
+   * Decodes the next frame like {@link #decodeRetained(Object)}, and accounts its size in the given
+   * tracker (unless it is null) until the frame is released.
+   */
+  public Frame decodeRetained(B source, RetainedMemoryTracker tracker) {
+    int frameLength = V3_ENCODED_HEADER_SIZE + decodeBodySize(source);
+    B frameBuffer = primitiveCodec.readRetainedSlice(source, frameLength);
+    try {
+      return decode(frameBuffer, null, true, tracker);
+    } catch (RuntimeException e) {
+      primitiveCodec.release(frameBuffer);
+      throw e;
+    }
+  }
+
+  private Frame decode(
+      B source, DecoderCache decoderCache, boolean retain, RetainedMemoryTracker tracker) {
+    B frameBuffer = source;
+    PrimitiveCodec<B> valueCodec = retain ? bytesViewCodec : primitiveCodec;
     int directionAndVersion = primitiveCodec.readByte(source);
     boolean isResponse = (directionAndVersion & 0b1000_0000) == 0b1000_0000;
     int protocolVersion = directionAndVersion & 0b0111_1111;
@@ -300,11 +683,18 @@ public class FrameCodec<B> {
 
     boolean decompressed = false;
     if (Flags.contains(flags, ProtocolConstants.FrameFlag.COMPRESSED)) {
+      checkDecompressedBodyLength(compressor.peekUncompressedLength(source), streamId);
       B newSource = compressor.decompress(source);
       // if decompress returns a different object, track this so we know to release it when done.
       if (newSource != source) {
         decompressed = true;
         source = newSource;
+        try {
+          checkDecompressedBodyLength(primitiveCodec.sizeOf(source), streamId);
+        } catch (IllegalArgumentException e) {
+          primitiveCodec.release(source);
+          throw e;
+        }
       }
     }
 
@@ -319,39 +709,237 @@ public class FrameCodec<B> {
       compressedFrameSize = -1;
     }
 
+    int bodyStart = primitiveCodec.sizeOf(source);
     boolean isTracing = Flags.contains(flags, ProtocolConstants.FrameFlag.TRACING);
-    UUID tracingId = (isResponse && isTracing) ? primitiveCodec.readUuid(source) : null;
+    UUID tracingId;
+    Map<String, ByteBuffer> customPayload;
+    List<String> warnings;
+    Message response;
+    try {
+      tracingId = (isResponse && isTracing) ? primitiveCodec.readUuid(source) : null;
+
+      customPayload =
+          (Flags.contains(flags, ProtocolConstants.FrameFlag.CUSTOM_PAYLOAD))
+              ? valueCodec.readBytesMap(source)
+              : Collections.emptyMap();
+
+      warnings =
+          (isResponse && Flags.contains(flags, ProtocolConstants.FrameFlag.WARNING))
+              ? primitiveCodec.readStringList(source)
+              : Collections.emptyList();
+
+      Message.Codec decoder =
+          (decoderCache == null)
+              ? lookupDecoder(protocolVersion, opcode)
+              : decoderCache.get(protocolVersion, opcode);
+      ProtocolErrors.check(
+          decoder != null,
+          "Unsupported request opcode: %s in protocol %d",
+          opcode,
+          protocolVersion);
+      if (decoder instanceof RawMessage.Codec) {
+        // The raw codec needs to know where the message ends (other frames might follow it)
+        int messageLength =
+            decompressed
+                ? primitiveCodec.sizeOf(source)
+                : length - (bodyStart - primitiveCodec.sizeOf(source));
+        response = ((RawMessage.Codec) decoder).decode(source, messageLength, primitiveCodec);
+      } else if (decoder.getClass() == Result.Codec.class) {
+        // RESULT is the most frequent response: dedicated call site, see encodeBodyInto
+        response = ((Result.Codec) decoder).decode(source, valueCodec);
+      } else {
+        response = decoder.decode(source, valueCodec);
+      }
+    } catch (RuntimeException e) {
+      // We own the decompressed body. The original source (the frame slice in retained mode) is
+      // released by the caller.
+      if (decompressed) {
+        primitiveCodec.release(source);
+      }
+      throw e;
+    }
 
-    Map<String, ByteBuffer> customPayload =
-        (Flags.contains(flags, ProtocolConstants.FrameFlag.CUSTOM_PAYLOAD))
-            ? primitiveCodec.readBytesMap(source)
-            : Collections.emptyMap();
+    if (!retain && tracker == null) {
+      if (decompressed) {
+        primitiveCodec.release(source);
+      }
+      return new Frame(
+          protocolVersion,
+          beta,
+          streamId,
+          isTracing,
+          tracingId,
+          frameSize,
+          compressedFrameSize,
+          customPayload,
+          warnings,
+          response);
+    }
 
-    List<String> warnings =
-        (isResponse && Flags.contains(flags, ProtocolConstants.FrameFlag.WARNING))
-            ? primitiveCodec.readStringList(source)
-            : Collections.emptyList();
+    if (!retain && decompressed) {
+      primitiveCodec.release(source);
+    }
+    // In retained mode, the views point into the decompressed body if there is one, otherwise into
+    // the frame
+    B retained = retain ? source : null;
+    if (tracker != null) {
+      try {
+        tracker.acquire(frameSize);
+      } catch (RuntimeException e) {
+        // A listener failed, the frame won't be returned. The caller releases frameBuffer.
+        tracker.release(frameSize);
+        if (retain && decompressed) {
+          primitiveCodec.release(source);
+        }
+        throw e;
+      }
+    }
+    Frame frame =
+        new Frame(
+            protocolVersion,
+            beta,
+            streamId,
+            isTracing,
+            tracingId,
+            frameSize,
+            compressedFrameSize,
+            customPayload,
+            warnings,
+            response,
+            () -> {
+              if (retained != null) {
+                primitiveCodec.release(retained);
+              }
+              if (tracker != null) {
+                tracker.release(frameSize);
+              }
+            });
+    if (retain && decompressed) {
+      primitiveCodec.release(frameBuffer);
+    }
+    return frame;
+  }
 
-    Message.Codec decoder = decoders.get(protocolVersion, opcode);
+  private void checkDecompressedBodyLength(int length, int streamId) {
     ProtocolErrors.check(
-        decoder != null, "Unsupported request opcode: %s in protocol %d", opcode, protocolVersion);
-    Message response = decoder.decode(source, primitiveCodec);
+        length <= maxDecompressedBodyLength,
+        "Decompressed body of frame %d exceeds the maximum length (%d bytes, max %d)",
+        streamId,
+        length,
+        maxDecompressedBodyLength);
+  }
 
-    if (decompressed) {
-      primitiveCodec.release(source);
+  /**
+   * Remembers the last decoder lookup: consecutive frames in the same buffer are likely to have the
+   * same opcode (e.g. a series of RESULT responses).
+   */
+  private class DecoderCache {
+    private int protocolVersion = -1;
+    private int opcode = -1;
+    private Message.Codec decoder;
+
+    Message.Codec get(int protocolVersion, int opcode) {
+      if (protocolVersion != this.protocolVersion || opcode != this.opcode) {
+        this.decoder = lookupDecoder(protocolVersion, opcode);
+        this.protocolVersion = protocolVersion;
+        this.opcode = opcode;
+      }
+      return decoder;
     }
+  }
 
-    return new Frame(
-        protocolVersion,
-        beta,
-        streamId,
-        isTracing,
-        tracingId,
-        frameSize,
-        compressedFrameSize,
-        customPayload,
-        warnings,
-        response);
+  /**
+   * The encoders and decoders registered by a set of {@link CodecGroup}s. This is immutable, and
+   * can be shared by multiple codec instances (message codecs are stateless).
+   */
+  private static class CodecTables {
+    // Opcodes are encoded on a single byte
+    private static final int OPCODE_COUNT = 256;
+
+    final IntIntMap<Message.Codec> encoders;
+    final IntIntMap<Message.Codec> decoders;
+    // Cache for forVersion(): version -> {encoders, decoders} indexed by opcode
+    private final ConcurrentMap<Integer, Message.Codec[][]> versionTables =
+        new ConcurrentHashMap<>();
+
+    CodecTables(CodecGroup... codecGroups) {
+      IntIntMap.Builder<Message.Codec> encodersBuilder = IntIntMap.builder();
+      IntIntMap.Builder<Message.Codec> decodersBuilder = IntIntMap.builder();
+      CodecGroup.Registry registry =
+          new CodecGroup.Registry() {
+            @Override
+            public CodecGroup.Registry addCodec(Message.Codec codec) {
+              addEncoder(codec);
+              addDecoder(codec);
+              return this;
+            }
+
+            @Override
+            public CodecGroup.Registry addEncoder(Message.Codec codec) {
+              encodersBuilder.put(codec.protocolVersion, codec.opcode, codec);
+              return this;
+            }
+
+            @Override
+            public CodecGroup.Registry addDecoder(Message.Codec codec) {
+              decodersBuilder.put(codec.protocolVersion, codec.opcode, codec);
+              return this;
+            }
+
+            @Override
+            public CodecGroup.Registry replaceEncoder(Message.Codec codec) {
+              encodersBuilder.replace(codec.protocolVersion, codec.opcode, codec);
+              return this;
+            }
+
+            @Override
+            public CodecGroup.Registry replaceDecoder(Message.Codec codec) {
+              decodersBuilder.replace(codec.protocolVersion, codec.opcode, codec);
+              return this;
+            }
+          };
+      for (CodecGroup codecGroup : codecGroups) {
+        codecGroup.registerCodecs(registry);
+      }
+      this.encoders = encodersBuilder.build();
+      this.decoders = decodersBuilder.build();
+    }
+
+    Message.Codec[][] forVersion(int protocolVersion) {
+      return versionTables.computeIfAbsent(
+          protocolVersion, v -> new Message.Codec[][] {flatten(encoders, v), flatten(decoders, v)});
+    }
+
+    private static Message.Codec[] flatten(IntIntMap<Message.Codec> codecs, int protocolVersion) {
+      int length = 0;
+      Message.Codec[] result = new Message.Codec[OPCODE_COUNT];
+      for (int opcode = 0; opcode < OPCODE_COUNT; opcode++) {
+        result[opcode] = codecs.get(protocolVersion, opcode);
+        if (result[opcode] != null) {
+          length = opcode + 1;
+        }
+      }
+      return Arrays.copyOf(result, length);
+    }
+  }
+
+  // Lazy holders: the tables are only built the first time they are needed
+  private static class DefaultClientTables {
+    static final CodecTables INSTANCE =
+        new CodecTables(
+            new ProtocolV3ClientCodecs(),
+            new ProtocolV4ClientCodecs(),
+            new ProtocolV5ClientCodecs(),
+            new ProtocolV6ClientCodecs());
+  }
+
+  private static class DefaultServerTables {
+    static final CodecTables INSTANCE =
+        new CodecTables(
+            new ProtocolV3ServerCodecs(),
+            new ProtocolV4ServerCodecs(),
+            new ProtocolV5ServerCodecs(),
+            new ProtocolV6ServerCodecs());
   }
 
   private int readStreamId(B source) {
@@ -382,6 +970,27 @@ public class FrameCodec<B> {
        * supposed to receive a subset of the existing messages.
        */
       Registry addDecoder(Message.Codec codec);
+
+      /**
+       * Add a codec for encoding, replacing the one that a previous group registered for the same
+       * version and opcode, if any. Unlike {@link #addEncoder(Message.Codec)}, this never fails
+       * because of a duplicate. Note that groups are processed in order, so the replacement must be
+       * registered after the original.
+       */
+      default Registry replaceEncoder(Message.Codec codec) {
+        throw new UnsupportedOperationException("This registry does not support replacements");
+      }
+
+      /**
+       * Add a codec for decoding, replacing the one that a previous group registered for the same
+       * version and opcode, if any. This is typically used to opt out of decoding some messages
+       * with a {@link RawMessage.Codec}, on top of the default groups.
+       *
+       * @see #replaceEncoder(Message.Codec)
+       */
+      default Registry replaceDecoder(Message.Codec codec) {
+        throw new UnsupportedOperationException("This registry does not support replacements");
+      }
     }
 
     void registerCodecs(Registry registry);
@@ -0,0 +1,96 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal;
+
+import com.datastax.oss.protocol.internal.util.Flags;
+
+/**
+ * The fields of a frame header, decoded without the body.
+ *
+ * <p>This is intended for components that only need to inspect frames, for example to route, meter
+ * or reject them, without the cost of building {@link Frame} and {@link Message} instances. See
+ * {@link FrameCodec#decodeHeader(Object, FrameHeader)}.
+ *
+ * <p>Instances are mutable, so that a single instance can be reused for every frame of a
+ * connection, and decoding doesn't allocate anything. They are not thread-safe.
+ */
+public class FrameHeader {
+
+  private int protocolVersion;
+  private boolean isResponse;
+  private int flags;
+  private int streamId;
+  private int opcode;
+  private int bodyLength;
+
+  void set(
+      int protocolVersion, boolean isResponse, int flags, int streamId, int opcode, int length) {
+    this.protocolVersion = protocolVersion;
+    this.isResponse = isResponse;
+    this.flags = flags;
+    this.streamId = streamId;
+    this.opcode = opcode;
+    this.bodyLength = length;
+  }
+
+  public int protocolVersion() {
+    return protocolVersion;
+  }
+
+  /** Whether the direction bit is set, in other words whether this frame contains a response. */
+  public boolean isResponse() {
+    return isResponse;
+  }
+
+  /** The raw flags, see {@link ProtocolConstants.FrameFlag}. */
+  public int flags() {
+    return flags;
+  }
+
+  public boolean isBeta() {
+    return Flags.contains(flags, ProtocolConstants.FrameFlag.USE_BETA);
+  }
+
+  public boolean isCompressed() {
+    return Flags.contains(flags, ProtocolConstants.FrameFlag.COMPRESSED);
+  }
+
+  public int streamId() {
+    return streamId;
+  }
+
+  /** The message opcode, see {@link ProtocolConstants.Opcode}. */
+  public int opcode() {
+    return opcode;
+  }
+
+  /** The length of the body, as encoded (that is, compressed if the frame is compressed). */
+  public int bodyLength() {
+    return bodyLength;
+  }
+
+  /** The total length of the frame, header included. */
+  public int frameLength() {
+    return FrameCodec.V3_ENCODED_HEADER_SIZE + bodyLength;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "FrameHeader(v%d%s, flags=%d, streamId=%d, opcode=%d, bodyLength=%d)",
+        protocolVersion, isResponse ? ", response" : "", flags, streamId, opcode, bodyLength);
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Decodes the incoming {@link Segment segments} of a connection on a pool of worker threads, and
+ * delivers the resulting {@link Frame frames} in order.
+ *
+ * <p>The I/O thread only decodes segment headers (with {@link SegmentCodec#decodeHeader(Object)}),
+ * waits until the rest of each segment is available, and passes it to {@link
+ * #submit(SegmentCodec.Header, Object)}. Checking the payload CRC, decompressing, and decoding the
+ * frames of self-contained segments happen on the executor.
+ *
+ * <p>Results are re-sequenced: the listener sees the frames in the order of the segments that
+ * contained them, one at a time (never concurrently), but not necessarily always on the same
+ * thread. The slices of a large frame are reassembled in order, and the frame is decoded once the
+ * last slice is available.
+ *
+ * <p>If a segment fails to decode (for example because of a CRC mismatch), the error is passed to
+ * the listener, and all subsequent segments are discarded: the connection is in an undefined state
+ * and should be closed.
+ *
+ * <p>Use one instance per connection. {@link #submit(SegmentCodec.Header, Object)} is not
+ * thread-safe, it is intended to be invoked from the connection's I/O thread.
+ *
+ * @param <B> the binary representation we're manipulating.
+ */
+public class PipelinedSegmentDecoder<B> {
+
+  /** Receives the outcome of the decoding. */
+  public interface Listener {
+    void onFrame(Frame frame);
+
+    void onError(Throwable error);
+  }
+
+  private final PrimitiveCodec<B> primitiveCodec;
+  private final SegmentCodec<B> segmentCodec;
+  private final FrameCodec<B> frameCodec;
+  private final Executor executor;
+  private final Listener listener;
+
+  private CompletableFuture<Void> lastDelivery = CompletableFuture.completedFuture(null);
+
+  // The fields below are only accessed from the delivery stages, which are serialized.
+  private B largeFrame;
+  private int largeFrameLength;
+  private boolean failed;
+
+  public PipelinedSegmentDecoder(
+      PrimitiveCodec<B> primitiveCodec,
+      SegmentCodec<B> segmentCodec,
+      FrameCodec<B> frameCodec,
+      Executor executor,
+      Listener listener) {
+    this.primitiveCodec = primitiveCodec;
+    this.segmentCodec = segmentCodec;
+    this.frameCodec = frameCodec;
+    this.executor = executor;
+    this.listener = listener;
+  }
+
+  /**
+   * Schedules the decoding of a segment.
+   *
+   * @param header the segment's header, already decoded and checked on the calling thread.
+   * @param source the rest of the segment (payload and trailing CRC), as expected by {@link
+   *     SegmentCodec#decode(SegmentCodec.Header, Object)}. Ownership is transferred to this object,
+   *     the caller should not release it.
+   */
+  public void submit(SegmentCodec.Header header, B source) {
+    CompletableFuture<Decoded<B>> decoding;
+    try {
+      decoding = CompletableFuture.supplyAsync(() -> decode(header, source), executor);
+    } catch (RejectedExecutionException e) {
+      // The task will never run, so nobody else will release the source
+      primitiveCodec.release(source);
+      decoding = CompletableFuture.completedFuture(new Decoded<>(Collections.emptyList(), null, e));
+    }
+    lastDelivery = lastDelivery.thenCombine(decoding, (ignored, decoded) -> deliver(decoded));
+  }
+
+  /**
+   * A future that completes when all the segments submitted so far have been delivered to the
+   * listener.
+   */
+  public CompletableFuture<Void> drained() {
+    return lastDelivery;
+  }
+
+  // Runs on the executor. Never throws, errors are propagated to the delivery stage.
+  private Decoded<B> decode(SegmentCodec.Header header, B source) {
+    try {
+      Segment<B> segment = segmentCodec.decode(header, source);
+      if (!segment.isSelfContained) {
+        return new Decoded<>(Collections.emptyList(), segment.payload, null);
+      }
+      List<Frame> frames = new ArrayList<>();
+      try {
+        frameCodec.decodeAll(segment.payload, frames::add);
+      } finally {
+        primitiveCodec.release(segment.payload);
+      }
+      return new Decoded<>(frames, null, null);
+    } catch (Throwable t) {
+      return new Decoded<>(Collections.emptyList(), null, t);
+    }
+  }
+
+  // Runs after the previous delivery has completed. Never throws, otherwise the chain of deliveries
+  // would break.
+  private Void deliver(Decoded<B> decoded) {
+    try {
+      if (failed) {
+        if (decoded.slice != null) {
+          primitiveCodec.release(decoded.slice);
+        }
+        return null;
+      }
+      if (decoded.error != null) {
+        fail(decoded.error);
+      } else if (decoded.slice != null) {
+        addSlice(decoded.slice);
+      } else {
+        for (Frame frame : decoded.frames) {
+          listener.onFrame(frame);
+        }
+      }
+    } catch (Throwable t) {
+      // The listener only gets one error
+      if (!failed) {
+        fail(t);
+      }
+    }
+    return null;
+  }
+
+  private void addSlice(B slice) {
+    if (largeFrame == null) {
+      largeFrame = slice;
+      largeFrameLength = FrameCodec.V3_ENCODED_HEADER_SIZE + frameCodec.decodeBodySize(largeFrame);
+    } else {
+      largeFrame = primitiveCodec.concat(largeFrame, slice);
+    }
+    int accumulated = primitiveCodec.sizeOf(largeFrame);
+    ProtocolErrors.check(
+        accumulated <= largeFrameLength,
+        "Received more slices than expected for a large frame (expected %d bytes, got %d)",
+        largeFrameLength,
+        accumulated);
+    if (accumulated == largeFrameLength) {
+      B buffer = largeFrame;
+      largeFrame = null;
+      Frame frame;
+      try {
+        frame = frameCodec.decode(buffer);
+      } finally {
+        primitiveCodec.release(buffer);
+      }
+      listener.onFrame(frame);
+    }
+  }
+
+  // Never throws, see deliver()
+  private void fail(Throwable error) {
+    failed = true;
+    if (largeFrame != null) {
+      B toRelease = largeFrame;
+      largeFrame = null;
+      try {
+        primitiveCodec.release(toRelease);
+      } catch (Throwable t) {
+        error.addSuppressed(t);
+      }
+    }
+    try {
+      listener.onError(error);
+    } catch (Throwable t) {
+      // Nobody left to report this to. Rethrowing would break the chain of deliveries, and the
+      // sources of the next segments would never be released.
+    }
+  }
+
+  private static class Decoded<B> {
+    final List<Frame> frames;
+    final B slice;
+    final Throwable error;
+
+    Decoded(List<Frame> frames, B slice, Throwable error) {
+      this.frames = frames;
+      this.slice = slice;
+      this.error = error;
+    }
+  }
+}
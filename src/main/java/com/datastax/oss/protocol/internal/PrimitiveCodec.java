@@ -37,6 +37,17 @@ import java.util.zip.CRC32;
 public interface PrimitiveCodec<B> {
   B allocate(int size);
 
+  /**
+   * Allocates a buffer for a known purpose. This is what the frame and segment codecs use, so that
+   * implementations can serve frequent, predictable sizes (headers, trailers...) from a pool, see
+   * for example {@link com.datastax.oss.protocol.internal.util.SizeClassPool}.
+   *
+   * <p>The default implementation ignores the hint and delegates to {@link #allocate(int)}.
+   */
+  default B allocate(int size, AllocationHint hint) {
+    return allocate(size);
+  }
+
   /**
    * "Releases" an element if the underlying implementation uses reference counting to manage memory
    * allocation. Otherwise, this can simply be a no-op.
@@ -70,6 +81,52 @@ public interface PrimitiveCodec<B> {
 
   ByteBuffer readBytes(B source);
 
+  /**
+   * Reads a {@code [bytes]} like {@link #readBytes(Object)}, but the result may be a view of {@code
+   * source}'s memory instead of a copy. It is only valid as long as {@code source} (or the buffer
+   * it was sliced from) has not been released.
+   *
+   * <p>This is used by {@link FrameCodec#decodeRetained(Object)}. The default implementation
+   * copies, implementations that can expose their memory as a {@link ByteBuffer} should override
+   * it.
+   */
+  default ByteBuffer readBytesView(B source) {
+    return readBytes(source);
+  }
+
+  /**
+   * Skips a {@code [bytes]} without reading its contents, and returns its length (negative if the
+   * value is null).
+   *
+   * <p>The default implementation skips with a slice that is released immediately, implementations
+   * that can move their read index directly should override it.
+   */
+  default int skipBytes(B source) {
+    int length = readInt(source);
+    if (length > 0) {
+      release(readRetainedSlice(source, length));
+    }
+    return length;
+  }
+
+  /**
+   * Reads a {@code [bytes]} into {@code dest}, starting at its current position (which is advanced
+   * by the length of the value), and returns its length (negative if the value is null).
+   *
+   * <p>The default implementation goes through {@link #readBytesView(Object)}, so it copies twice
+   * unless that method is overridden. Implementations should override it to copy directly from
+   * their memory.
+   */
+  default int readBytesInto(B source, ByteBuffer dest) {
+    ByteBuffer value = readBytesView(source);
+    if (value == null) {
+      return -1;
+    }
+    int length = value.remaining();
+    dest.put(value);
+    return length;
+  }
+
   byte[] readShortBytes(B source);
 
   String readString(B source);
@@ -87,6 +144,34 @@ public interface PrimitiveCodec<B> {
   /** Feeds all available bytes into the given CRC. This should not "consume" the bytes. */
   void updateCrc(B source, CRC32 crc);
 
+  /**
+   * Feeds {@code length} bytes into the given CRC, starting at {@code offset} (relative to the
+   * current read index). This should not "consume" the bytes.
+   *
+   * <p>The default implementation goes through retained slices, implementations should override it
+   * with a direct access to the range.
+   */
+  default void updateCrc(B source, int offset, int length, CRC32 crc) {
+    markReaderIndex(source);
+    if (offset > 0) {
+      release(readRetainedSlice(source, offset));
+    }
+    B range = readRetainedSlice(source, length);
+    updateCrc(range, crc);
+    release(range);
+    resetReaderIndex(source);
+  }
+
+  /**
+   * Copies all the available bytes of {@code source} into {@code dest}, without any length prefix.
+   * This should not "consume" the source bytes.
+   *
+   * <p>This is on the path of every {@link FrameCodec#preSerialize(Frame) pre-serialized} frame, so
+   * implementations should use a bulk copy (copying byte by byte would be slower than encoding the
+   * message again).
+   */
+  void writeRawBytes(B source, B dest);
+
   default UUID readUuid(B source) {
     long msb = readLong(source);
     long lsb = readLong(source);
@@ -22,6 +22,48 @@ package com.datastax.oss.protocol.internal;
  * indicating a programming error.
  */
 public class ProtocolErrors {
+
+  // The overloads below avoid allocating a varargs array (and boxing primitive arguments) when the
+  // check passes. This matters because some of them are on the hot path of the frame codec.
+
+  public static void check(boolean condition, String errorWhenFalse) {
+    if (!condition) {
+      throw new IllegalArgumentException(String.format(errorWhenFalse));
+    }
+  }
+
+  public static void check(boolean condition, String errorWhenFalse, int argument) {
+    if (!condition) {
+      throw new IllegalArgumentException(String.format(errorWhenFalse, argument));
+    }
+  }
+
+  public static void check(boolean condition, String errorWhenFalse, long argument) {
+    if (!condition) {
+      throw new IllegalArgumentException(String.format(errorWhenFalse, argument));
+    }
+  }
+
+  public static void check(boolean condition, String errorWhenFalse, Object argument) {
+    if (!condition) {
+      throw new IllegalArgumentException(String.format(errorWhenFalse, argument));
+    }
+  }
+
+  public static void check(boolean condition, String errorWhenFalse, int argument1, int argument2) {
+    if (!condition) {
+      throw new IllegalArgumentException(String.format(errorWhenFalse, argument1, argument2));
+    }
+  }
+
+  public static void check(
+      boolean condition, String errorWhenFalse, int argument1, int argument2, int argument3) {
+    if (!condition) {
+      throw new IllegalArgumentException(
+          String.format(errorWhenFalse, argument1, argument2, argument3));
+    }
+  }
+
   public static void check(boolean condition, String errorWhenFalse, Object... arguments) {
     if (!condition) {
       throw new IllegalArgumentException(String.format(errorWhenFalse, arguments));
@@ -0,0 +1,95 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal;
+
+/**
+ * A message that is not decoded: its body is kept as-is, in the binary representation.
+ *
+ * <p>To receive raw messages, register a {@link Codec} for the opcodes that you don't want to
+ * decode, for example because you only forward or log them, or because this library doesn't support
+ * them yet. If a previous group already registers a decoder for that opcode (as the default groups
+ * do for EVENT and RESULT), replace it:
+ *
+ * <pre>
+ * new FrameCodec&lt;&gt;(primitiveCodec, compressor,
+ *     new ProtocolV5ClientCodecs(),
+ *     registry -&gt; registry.replaceDecoder(
+ *         new RawMessage.Codec(ProtocolConstants.Opcode.EVENT, ProtocolConstants.Version.V5, true)));
+ * </pre>
+ *
+ * The decoded {@link #body} is a retained slice of the incoming data; the caller is responsible for
+ * releasing it when done.
+ *
+ * <p>Raw messages can be encoded without registering anything: {@link FrameCodec} copies the body
+ * as-is (without consuming it, so the same message can be sent multiple times).
+ *
+ * @param <B> the binary representation of the body.
+ */
+public class RawMessage<B> extends Message {
+
+  public final B body;
+  public final int bodyLength;
+
+  public RawMessage(boolean isResponse, int opcode, B body, int bodyLength) {
+    super(isResponse, opcode);
+    this.body = body;
+    this.bodyLength = bodyLength;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("RAW(opcode=%d, %d bytes)", opcode, bodyLength);
+  }
+
+  public static class Codec extends Message.Codec {
+
+    // Used by FrameCodec to encode any raw message, the opcode and version come from the frame.
+    static final Codec ENCODER = new Codec(-1, -1, false);
+
+    private final boolean isResponse;
+
+    public Codec(int opcode, int protocolVersion, boolean isResponse) {
+      super(opcode, protocolVersion);
+      this.isResponse = isResponse;
+    }
+
+    @Override
+    public <B> void encode(B dest, Message message, PrimitiveCodec<B> encoder) {
+      @SuppressWarnings("unchecked")
+      RawMessage<B> raw = (RawMessage<B>) message;
+      encoder.writeRawBytes(raw.body, dest);
+    }
+
+    @Override
+    public int encodedSize(Message message) {
+      return ((RawMessage<?>) message).bodyLength;
+    }
+
+    /**
+     * Decodes all the remaining bytes. Note that {@link FrameCodec} does not use this method, it
+     * invokes {@link #decode(Object, int, PrimitiveCodec)} with the exact length of the body.
+     */
+    @Override
+    public <B> Message decode(B source, PrimitiveCodec<B> decoder) {
+      return decode(source, decoder.sizeOf(source), decoder);
+    }
+
+    public <B> RawMessage<B> decode(B source, int bodyLength, PrimitiveCodec<B> decoder) {
+      return new RawMessage<>(
+          isResponse, opcode, decoder.readRetainedSlice(source, bodyLength), bodyLength);
+    }
+  }
+}
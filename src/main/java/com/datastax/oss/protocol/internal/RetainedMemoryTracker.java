@@ -0,0 +1,196 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the bytes held by decoded frames that have not been {@link Frame#release() released} yet,
+ * and tells the transport when to stop reading.
+ *
+ * <p>Frames are accounted when they are decoded with {@link FrameCodec#decode(Object,
+ * RetainedMemoryTracker)} or {@link FrameCodec#decodeRetained(Object, RetainedMemoryTracker)}
+ * (their {@link Frame#size size} is acquired), and given back when they are released.
+ *
+ * <p>Trackers form a hierarchy: typically, a global instance, and a {@link #newChild child} per
+ * connection. Bytes acquired by a child are also acquired by its ancestors. A tracker pauses when
+ * its retained bytes reach its high watermark, and resumes once they fall back to its low
+ * watermark. Each connection should stop reading while {@link #isPaused()} is true, which also
+ * takes the ancestors into account: the listener of a tracker is told to {@link Listener#onPause
+ * pause} or {@link Listener#onResume resume} whenever that state changes, whichever tracker of the
+ * hierarchy crossed its watermark. Children should be {@link #close() closed} with their
+ * connection.
+ *
+ * <p>This class is thread-safe. Listeners are invoked synchronously, on the thread that crossed the
+ * watermark (a decoding or releasing thread), so they should not block. The notifications of a
+ * given tracker never run concurrently, and always alternate between pause and resume.
+ */
+public class RetainedMemoryTracker implements AutoCloseable {
+
+  /** Receives the changes of {@link #isPaused()} for a tracker. */
+  public interface Listener {
+    void onPause(RetainedMemoryTracker tracker);
+
+    void onResume(RetainedMemoryTracker tracker);
+  }
+
+  private final RetainedMemoryTracker parent;
+  private final long highWatermark;
+  private final long lowWatermark;
+  private final Listener listener;
+  private final AtomicLong retainedBytes = new AtomicLong();
+  private final List<RetainedMemoryTracker> children = new CopyOnWriteArrayList<>();
+
+  // Both guarded by this tracker's monitor. The effective state is volatile so that isPaused() and
+  // the descendants can read it without locking.
+  private boolean ownPaused;
+  private volatile boolean paused;
+
+  /**
+   * Creates a root tracker (typically the global one).
+   *
+   * @param highWatermark the number of retained bytes at which reads should be paused.
+   * @param lowWatermark the number of retained bytes at which reads can resume. Must be lower than
+   *     the high watermark.
+   * @param listener the listener to notify, or {@code null} if the owner polls {@link #isPaused()}.
+   */
+  public RetainedMemoryTracker(long highWatermark, long lowWatermark, Listener listener) {
+    this(null, highWatermark, lowWatermark, listener);
+  }
+
+  private RetainedMemoryTracker(
+      RetainedMemoryTracker parent, long highWatermark, long lowWatermark, Listener listener) {
+    ProtocolErrors.check(
+        highWatermark > 0, "highWatermark must be strictly positive (got %d)", highWatermark);
+    ProtocolErrors.check(
+        lowWatermark >= 0 && lowWatermark < highWatermark,
+        "lowWatermark must be positive and lower than highWatermark (got %d)",
+        lowWatermark);
+    this.parent = parent;
+    this.highWatermark = highWatermark;
+    this.lowWatermark = lowWatermark;
+    this.listener = listener;
+  }
+
+  /** Creates a tracker whose bytes are also accounted by this one (typically per connection). */
+  public RetainedMemoryTracker newChild(long highWatermark, long lowWatermark, Listener listener) {
+    RetainedMemoryTracker child =
+        new RetainedMemoryTracker(this, highWatermark, lowWatermark, listener);
+    children.add(child);
+    child.updateEffectiveState();
+    return child;
+  }
+
+  /**
+   * Accounts the given bytes in this tracker and its ancestors. The counts are all updated before
+   * any listener is notified, so if a listener throws, the caller can undo with {@link
+   * #release(long)}.
+   */
+  public void acquire(long bytes) {
+    ProtocolErrors.check(bytes >= 0, "bytes must be positive (got %d)", bytes);
+    for (RetainedMemoryTracker t = this; t != null; t = t.parent) {
+      t.retainedBytes.addAndGet(bytes);
+    }
+    updatePausedStates();
+  }
+
+  public void release(long bytes) {
+    ProtocolErrors.check(bytes >= 0, "bytes must be positive (got %d)", bytes);
+    for (RetainedMemoryTracker t = this; t != null; t = t.parent) {
+      long remaining = t.retainedBytes.addAndGet(-bytes);
+      assert remaining >= 0 : "Released more bytes than acquired";
+    }
+    updatePausedStates();
+  }
+
+  /** The bytes currently retained through this tracker and its descendants. */
+  public long retainedBytes() {
+    return retainedBytes.get();
+  }
+
+  /** Whether reads should currently be paused, because of this tracker or one of its ancestors. */
+  public boolean isPaused() {
+    return paused;
+  }
+
+  public long highWatermark() {
+    return highWatermark;
+  }
+
+  public long lowWatermark() {
+    return lowWatermark;
+  }
+
+  /**
+   * Stops forwarding the state changes of the ancestors to this tracker, so that it can be garbage
+   * collected. Frames that are still retained can be released after this call.
+   */
+  @Override
+  public void close() {
+    if (parent != null) {
+      parent.children.remove(this);
+    }
+  }
+
+  private void updatePausedStates() {
+    for (RetainedMemoryTracker t = this; t != null; t = t.parent) {
+      t.updatePausedState();
+    }
+  }
+
+  // Every change of the count is followed by a call, which will see it once it gets the lock. So
+  // there is no need to loop if the count crosses the other watermark in the meantime.
+  private synchronized void updatePausedState() {
+    long current = retainedBytes.get();
+    if (current >= highWatermark && !ownPaused) {
+      ownPaused = true;
+    } else if (current <= lowWatermark && ownPaused) {
+      ownPaused = false;
+    } else {
+      return;
+    }
+    updateEffectiveState();
+  }
+
+  // Notifies under the lock, so that two transitions can't be reported out of order. Locks are
+  // always acquired from ancestors to descendants.
+  private synchronized void updateEffectiveState() {
+    boolean newPaused = ownPaused || (parent != null && parent.paused);
+    if (newPaused == paused) {
+      return;
+    }
+    paused = newPaused;
+    if (listener != null) {
+      if (newPaused) {
+        listener.onPause(this);
+      } else {
+        listener.onResume(this);
+      }
+    }
+    for (RetainedMemoryTracker child : children) {
+      child.updateEffectiveState();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "RetainedMemoryTracker(retained=%d, high=%d, low=%d, paused=%s)",
+        retainedBytes.get(), highWatermark, lowWatermark, paused);
+  }
+}
@@ -24,8 +24,8 @@ package com.datastax.oss.protocol.internal;
  * <ul>
  *   <li>a sequence of encoded {@link Frame}s, all concatenated together. In this case, {@link
  *       #isSelfContained} is true.
- *   <li>or a slice of an encoded large {@link Frame} (if that frame is longer than {@link
- *       #MAX_PAYLOAD_LENGTH}). In this case, {@link #isSelfContained} is false.
+ *   <li>or a slice of an encoded large {@link Frame} (if that frame is longer than the maximum
+ *       payload length). In this case, {@link #isSelfContained} is false.
  * </ul>
  *
  * The payload is not compressed; compression is handled at a lower level when encoding or decoding
@@ -37,13 +37,52 @@ package com.datastax.oss.protocol.internal;
  */
 public class Segment<B> {
 
-  public static int MAX_PAYLOAD_LENGTH = 128 * 1024 - 1;
+  /**
+   * The maximum payload length allowed by the protocol: the length is encoded on 17 bits in the
+   * segment header.
+   */
+  public static final int PROTOCOL_MAX_PAYLOAD_LENGTH = 128 * 1024 - 1;
+
+  /**
+   * @deprecated this field is not read anymore: {@link SegmentBuilder} and {@link SegmentCodec}
+   *     default to {@link #PROTOCOL_MAX_PAYLOAD_LENGTH}. To use a different length, pass it to the
+   *     constructors instead (see {@link SegmentBuilder#SegmentBuilder(PrimitiveCodec, FrameCodec,
+   *     int)} and {@link SegmentCodec#SegmentCodec(PrimitiveCodec, Compressor, int)}).
+   */
+  @Deprecated public static int MAX_PAYLOAD_LENGTH = PROTOCOL_MAX_PAYLOAD_LENGTH;
 
   public final B payload;
   public final boolean isSelfContained;
 
+  /**
+   * Whether {@link #payloadCrc} was computed while the payload was being encoded (see {@link
+   * SegmentBuilder#computesPayloadCrc()}). If false, {@link SegmentCodec} computes it.
+   */
+  public final boolean hasPayloadCrc;
+
+  public final int payloadCrc;
+
   public Segment(B payload, boolean isSelfContained) {
+    this(payload, isSelfContained, false, 0);
+  }
+
+  /** Creates a segment with a precomputed CRC32 of its (uncompressed) payload. */
+  public Segment(B payload, boolean isSelfContained, int payloadCrc) {
+    this(payload, isSelfContained, true, payloadCrc);
+  }
+
+  private Segment(B payload, boolean isSelfContained, boolean hasPayloadCrc, int payloadCrc) {
     this.payload = payload;
     this.isSelfContained = isSelfContained;
+    this.hasPayloadCrc = hasPayloadCrc;
+    this.payloadCrc = payloadCrc;
+  }
+
+  static void checkMaxPayloadLength(int maxPayloadLength) {
+    ProtocolErrors.check(
+        maxPayloadLength > 0 && maxPayloadLength <= PROTOCOL_MAX_PAYLOAD_LENGTH,
+        "Maximum payload length must be between 1 and %d (got %d)",
+        PROTOCOL_MAX_PAYLOAD_LENGTH,
+        maxPayloadLength);
   }
 }
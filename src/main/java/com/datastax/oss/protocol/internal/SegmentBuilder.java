@@ -15,8 +15,13 @@
  */
 package com.datastax.oss.protocol.internal;
 
+import com.datastax.oss.protocol.internal.util.Crc;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
+import java.util.zip.CRC32;
 
 /**
  * Abstracts the logic of batching a sequence of outgoing {@link Frame frames} into one or more
@@ -31,23 +36,117 @@ import java.util.List;
  */
 public abstract class SegmentBuilder<B, StateT> {
 
+  /** How the slices of large frames are scheduled relative to small frames. */
+  public enum LargeFrameScheduling {
+    /**
+     * Slices are processed as soon as the large frame is added, ahead of any small frames added
+     * afterwards. This is the default.
+     */
+    IMMEDIATE,
+    /**
+     * Slices are queued, and only processed by {@link #flush()} or {@link #flush(int)}, after the
+     * pending small frames. This allows latency-sensitive small frames to go out in self-contained
+     * segments between the slices of a large frame: the protocol allows it, as long as the slices
+     * of each large frame are sent in order, and not interleaved with those of another large frame.
+     */
+    INTERLEAVED,
+  }
+
+  // Weight of the latest sample in the moving average of inter-arrival times (1/8, as in TCP's RTT
+  // estimation).
+  private static final int INTER_ARRIVAL_SMOOTHING_SHIFT = 3;
+
   private final PrimitiveCodec<B> primitiveCodec;
   private final FrameCodec<B> frameCodec;
   private final int maxPayloadLength;
+  private final SegmentFlushPolicy flushPolicy;
+  private final boolean flushPolicyUsesClock;
+  private final LargeFrameScheduling largeFrameScheduling;
 
   private List<Frame> currentPayloadFrames = new ArrayList<>();
   private List<StateT> currentPayloadStates = new ArrayList<>();
+  // The body size of each frame in currentPayloadFrames, so that we don't recompute it on encoding
+  private int[] currentPayloadBodySizes = new int[16];
   private int currentPayloadLength;
+  private long currentPayloadDeadline;
+
+  private long lastFrameArrival;
+  private long averageInterArrival = -1;
+
+  private final Deque<PendingSlices> pendingSlices = new ArrayDeque<>();
+  // Only used if computesPayloadCrc() is true
+  private final CRC32 payloadCrc = new CRC32();
 
   protected SegmentBuilder(PrimitiveCodec<B> primitiveCodec, FrameCodec<B> frameCodec) {
-    this(primitiveCodec, frameCodec, Segment.MAX_PAYLOAD_LENGTH);
+    this(primitiveCodec, frameCodec, Segment.PROTOCOL_MAX_PAYLOAD_LENGTH);
+  }
+
+  /**
+   * Creates an instance with a specific maximum payload length. For example, a latency-sensitive
+   * connection can use smaller segments, while a throughput-oriented one uses the protocol maximum.
+   * This should match the value used by the {@link SegmentCodec} of the same connection.
+   *
+   * @throws IllegalArgumentException if the length is not strictly positive, or greater than {@link
+   *     Segment#PROTOCOL_MAX_PAYLOAD_LENGTH}.
+   */
+  protected SegmentBuilder(
+      PrimitiveCodec<B> primitiveCodec, FrameCodec<B> frameCodec, int maxPayloadLength) {
+    this(
+        primitiveCodec,
+        frameCodec,
+        maxPayloadLength,
+        SegmentFlushPolicy.NONE,
+        LargeFrameScheduling.IMMEDIATE);
+  }
+
+  /**
+   * Creates an instance that emits self-contained segments according to the given policy, in
+   * addition to the explicit calls to {@link #flush()}.
+   */
+  protected SegmentBuilder(
+      PrimitiveCodec<B> primitiveCodec, FrameCodec<B> frameCodec, SegmentFlushPolicy flushPolicy) {
+    this(
+        primitiveCodec,
+        frameCodec,
+        Segment.PROTOCOL_MAX_PAYLOAD_LENGTH,
+        flushPolicy,
+        LargeFrameScheduling.IMMEDIATE);
   }
 
-  // Visible for testing. In production, the max length is hard-coded
-  SegmentBuilder(PrimitiveCodec<B> primitiveCodec, FrameCodec<B> frameCodec, int maxPayloadLength) {
+  /**
+   * Creates an instance that emits self-contained segments according to the given policy, and
+   * schedules large frames according to the given mode.
+   */
+  protected SegmentBuilder(
+      PrimitiveCodec<B> primitiveCodec,
+      FrameCodec<B> frameCodec,
+      SegmentFlushPolicy flushPolicy,
+      LargeFrameScheduling largeFrameScheduling) {
+    this(
+        primitiveCodec,
+        frameCodec,
+        Segment.PROTOCOL_MAX_PAYLOAD_LENGTH,
+        flushPolicy,
+        largeFrameScheduling);
+  }
+
+  /**
+   * Creates an instance with a specific maximum payload length (see {@link
+   * #SegmentBuilder(PrimitiveCodec, FrameCodec, int)}), flush policy and large frame scheduling.
+   */
+  protected SegmentBuilder(
+      PrimitiveCodec<B> primitiveCodec,
+      FrameCodec<B> frameCodec,
+      int maxPayloadLength,
+      SegmentFlushPolicy flushPolicy,
+      LargeFrameScheduling largeFrameScheduling) {
+    Segment.checkMaxPayloadLength(maxPayloadLength);
     this.primitiveCodec = primitiveCodec;
     this.frameCodec = frameCodec;
     this.maxPayloadLength = maxPayloadLength;
+    this.flushPolicy = flushPolicy;
+    this.flushPolicyUsesClock = flushPolicy.usesClock();
+    this.largeFrameScheduling = largeFrameScheduling;
   }
 
   /**
@@ -65,34 +164,93 @@ public abstract class SegmentBuilder<B, StateT> {
   /** What to do whenever a full segment is ready. */
   protected abstract void processSegment(Segment<B> segment, StateT segmentState);
 
+  /**
+   * Allocates the buffer of a self-contained segment, that will contain {@code payloadLength} bytes
+   * of frames. The frames are appended to whatever the buffer already contains.
+   *
+   * <p>The default implementation allocates an empty buffer. Subclasses that know the connection's
+   * {@link SegmentCodec} can override this with {@link SegmentCodec#allocateWithReservedHeader(int,
+   * boolean)}, and then encode the {@link Segment#payload payload} passed to {@link
+   * #processSegment(Segment, Object)} with {@link SegmentCodec#encodeWithReservedHeader(Object,
+   * List)}: each self-contained segment then reaches the wire as a single contiguous buffer.
+   *
+   * <p>This does not apply to the slices of large frames, which are views of the frame's buffer.
+   */
+  protected B allocatePayload(int payloadLength) {
+    return primitiveCodec.allocate(payloadLength, AllocationHint.SEGMENT_PAYLOAD);
+  }
+
+  /**
+   * Whether to compute the CRC32 of self-contained payloads as they are built, and pass it with the
+   * {@link Segment#payloadCrc segment}. This is only useful for uncompressed connections (with
+   * compression, the CRC covers the compressed bytes and must be computed by the codec anyway).
+   *
+   * <p>Each frame is checksummed right after it was encoded, while its bytes are still in the CPU
+   * cache, instead of reading the whole payload again later in {@link SegmentCodec}. If {@link
+   * #allocatePayload(int)} reserves a header, it is excluded from the CRC.
+   *
+   * <p>The default implementation returns false.
+   */
+  protected boolean computesPayloadCrc() {
+    return false;
+  }
+
+  /**
+   * What to do with the slices of a large frame, once they are all ready.
+   *
+   * <p>The default implementation passes each slice to {@link #processSegment(Segment, Object)}, in
+   * order. Subclasses can override this to process the slices as a group, for example to compress
+   * and checksum them concurrently with {@link SegmentCodec#encodeAll(List,
+   * java.util.concurrent.Executor)}. Slices must still reach the wire in the order of the list.
+   *
+   * @param slices the non self-contained segments, in order. This might be a view of a larger list
+   *     (with {@link LargeFrameScheduling#INTERLEAVED}), it must not be modified.
+   * @param sliceStates the state of each slice, as returned by {@link #splitState(Object, int)}.
+   */
+  protected void processSlices(List<Segment<B>> slices, List<StateT> sliceStates) {
+    for (int i = 0; i < slices.size(); i++) {
+      processSegment(slices.get(i), sliceStates.get(i));
+    }
+  }
+
   /**
    * Adds a new frame. It will be encoded into one or more segments, that will be passed to {@link
    * #processSegment(Segment, Object)} at some point in the future.
    *
    * <p>The caller <b>must</b> invoke {@link #flush()} after the last frame.
+   *
+   * <p>If the builder uses {@link LargeFrameScheduling#INTERLEAVED}, a large frame is encoded and
+   * split immediately, but its slices are only processed when the builder is flushed.
    */
   public void addFrame(Frame frame, StateT frameState) {
     int frameBodyLength = frameCodec.encodedBodySize(frame);
     int frameLength = frameCodec.encodedHeaderSize(frame) + frameBodyLength;
 
     if (frameLength > maxPayloadLength) {
-      // Large request: split into multiple dedicated segments and process them immediately.
-      B frameBuffer = primitiveCodec.allocate(frameLength);
+      // Large request: split into multiple dedicated segments and process them immediately (or
+      // queue them if we interleave).
+      B frameBuffer = primitiveCodec.allocate(frameLength, AllocationHint.FRAME);
       frameCodec.encodeInto(frame, frameBodyLength, frameBuffer);
       boolean isExactMultiple = frameLength % maxPayloadLength == 0;
       int sliceCount = (frameLength / maxPayloadLength) + (isExactMultiple ? 0 : 1);
       onLargeFrameSplit(frame, frameLength, sliceCount);
       List<StateT> sliceStates = splitState(frameState, sliceCount);
+      List<Segment<B>> slices = new ArrayList<>(sliceCount);
       for (int i = 0; i < sliceCount; i++) {
         int sliceLength =
             i < sliceCount - 1 || isExactMultiple
                 ? maxPayloadLength
                 : frameLength % maxPayloadLength;
         B slicePayload = primitiveCodec.readRetainedSlice(frameBuffer, sliceLength);
-        processSegment(new Segment<>(slicePayload, false), sliceStates.get(i));
+        slices.add(new Segment<>(slicePayload, false));
       }
       // We've retained each slice, and won't reference this buffer anymore
       primitiveCodec.release(frameBuffer);
+      if (largeFrameScheduling == LargeFrameScheduling.IMMEDIATE) {
+        processSlices(slices, sliceStates);
+      } else {
+        pendingSlices.add(new PendingSlices(slices, sliceStates));
+      }
     } else {
       // Small request: append to an existing segment, together with other messages.
       if (currentPayloadLength + frameLength > maxPayloadLength) {
@@ -101,25 +259,112 @@ public abstract class SegmentBuilder<B, StateT> {
         processCurrentPayload();
         resetCurrentPayload();
       }
+      int frameIndex = currentPayloadFrames.size();
+      if (frameIndex == currentPayloadBodySizes.length) {
+        currentPayloadBodySizes = Arrays.copyOf(currentPayloadBodySizes, frameIndex * 2);
+      }
+      currentPayloadBodySizes[frameIndex] = frameBodyLength;
       currentPayloadFrames.add(frame);
       currentPayloadStates.add(frameState);
       currentPayloadLength += frameLength;
       onSmallFrameAdded(frame, frameLength, currentPayloadLength, currentPayloadFrames.size());
+      applyFlushPolicy();
     }
   }
 
+  /**
+   * Emits the current self-contained segment if the {@link SegmentFlushPolicy#maxDelayNanos maximum
+   * delay} of the flush policy has elapsed since its first frame was added.
+   *
+   * <p>This is intended to be invoked by the task scheduled from {@link #scheduleFlush(long)} (on
+   * the same thread as the other methods of this class, since it is not thread-safe).
+   *
+   * @return whether a segment was emitted.
+   */
+  public boolean flushIfDue() {
+    if (!currentPayloadFrames.isEmpty()
+        && flushPolicy.maxDelayNanos != Long.MAX_VALUE
+        && nanoTime() - currentPayloadDeadline >= 0) {
+      flushFromPolicy(SegmentFlushPolicy.Reason.MAX_DELAY);
+      return true;
+    }
+    return false;
+  }
+
   /**
    * Signals that we're done adding frames.
    *
    * <p>This must be called after adding the last frame, it will possibly trigger the generation of
-   * one last segment.
+   * one last segment. With {@link LargeFrameScheduling#INTERLEAVED}, it also processes all the
+   * slices that are still queued, after that last segment.
    */
   public void flush() {
+    flush(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Emits the pending small frames, and then at most {@code maxSlices} queued slices of large
+   * frames.
+   *
+   * <p>This is intended for {@link LargeFrameScheduling#INTERLEAVED}: the caller processes large
+   * frames one work unit at a time (for example while the channel is writable), and any small frame
+   * added in the meantime goes out before the next work unit. The caller <b>must</b> keep invoking
+   * this method (or {@link #flush()}) until {@link #hasPendingSlices()} returns false.
+   *
+   * <p>With {@link LargeFrameScheduling#IMMEDIATE}, slices are never queued, so this is the same as
+   * {@link #flush()}.
+   */
+  public void flush(int maxSlices) {
     if (!currentPayloadFrames.isEmpty()) {
       onLastSegmentFlushed(currentPayloadLength, currentPayloadFrames.size());
       processCurrentPayload();
       resetCurrentPayload();
     }
+    int remaining = maxSlices;
+    while (remaining > 0 && !pendingSlices.isEmpty()) {
+      PendingSlices pending = pendingSlices.peek();
+      int end = (int) Math.min((long) pending.next + remaining, pending.slices.size());
+      if (pending.next == 0 && end == pending.slices.size()) {
+        processSlices(pending.slices, pending.states);
+      } else {
+        // Views, the lists are never modified
+        processSlices(
+            pending.slices.subList(pending.next, end), pending.states.subList(pending.next, end));
+      }
+      remaining -= end - pending.next;
+      pending.next = end;
+      if (pending.next == pending.slices.size()) {
+        pendingSlices.poll();
+      }
+    }
+  }
+
+  /**
+   * Releases the slices of large frames that are still queued, and forgets them. This is intended
+   * for when the builder is discarded before all slices were flushed (for example because the
+   * connection was closed). It only applies to {@link LargeFrameScheduling#INTERLEAVED}.
+   *
+   * @return the states of the discarded slices, so that the caller can fail them. If some slices of
+   *     a frame were already processed, only the states of the remaining ones are returned.
+   */
+  public List<StateT> releasePending() {
+    List<StateT> discardedStates = new ArrayList<>();
+    PendingSlices pending;
+    while ((pending = pendingSlices.poll()) != null) {
+      for (int i = pending.next; i < pending.slices.size(); i++) {
+        primitiveCodec.release(pending.slices.get(i).payload);
+        discardedStates.add(pending.states.get(i));
+      }
+    }
+    return discardedStates;
+  }
+
+  /**
+   * Whether there are slices of large frames waiting to be processed. This only happens with {@link
+   * LargeFrameScheduling#INTERLEAVED}.
+   */
+  public boolean hasPendingSlices() {
+    return !pendingSlices.isEmpty();
   }
 
   /**
@@ -182,18 +427,107 @@ public abstract class SegmentBuilder<B, StateT> {
     // by default, nothing to do
   }
 
+  /**
+   * Invoked when the flush policy has a maximum delay, and a new self-contained segment was
+   * started. Implementations are expected to invoke {@link #flushIfDue()} after the given delay.
+   *
+   * <p>The default implementation is empty: if it is not overridden, the maximum delay is only
+   * enforced when frames are added (or if the caller invokes {@link #flushIfDue()} on its own).
+   *
+   * @param delayNanos the delay, in nanoseconds.
+   */
+  @SuppressWarnings("unused")
+  protected void scheduleFlush(long delayNanos) {
+    // by default, nothing to do
+  }
+
+  /**
+   * Invoked whenever the flush policy triggers the emission of the current self-contained segment.
+   * This is intended for logs in subclasses, the default implementation is empty.
+   *
+   * @param reason why the segment is emitted.
+   * @param currentPayloadLength the length of the segment's payload in bytes.
+   * @param currentFrameCount the number of frames in the segment.
+   */
+  @SuppressWarnings("unused")
+  protected void onPolicyFlush(
+      SegmentFlushPolicy.Reason reason, int currentPayloadLength, int currentFrameCount) {
+    // by default, nothing to do
+  }
+
+  /**
+   * The time source for the flush policy, in nanoseconds. This is only exposed for tests,
+   * subclasses should not need to override it.
+   */
+  protected long nanoTime() {
+    return System.nanoTime();
+  }
+
+  private void applyFlushPolicy() {
+    int frameCount = currentPayloadFrames.size();
+    if (frameCount >= flushPolicy.maxFrames) {
+      flushFromPolicy(SegmentFlushPolicy.Reason.MAX_FRAMES);
+      return;
+    }
+    if (currentPayloadLength >= flushPolicy.maxBytes) {
+      flushFromPolicy(SegmentFlushPolicy.Reason.MAX_BYTES);
+      return;
+    }
+    if (!flushPolicyUsesClock) {
+      return;
+    }
+    long now = nanoTime();
+    if (flushPolicy.adaptive) {
+      if (averageInterArrival < 0) {
+        // First frame: we have no history, so assume low load
+        averageInterArrival = flushPolicy.maxDelayNanos;
+      } else {
+        long sample = now - lastFrameArrival;
+        averageInterArrival += (sample - averageInterArrival) >> INTER_ARRIVAL_SMOOTHING_SHIFT;
+      }
+      lastFrameArrival = now;
+      if (averageInterArrival >= flushPolicy.maxDelayNanos) {
+        flushFromPolicy(SegmentFlushPolicy.Reason.LOW_LOAD);
+        return;
+      }
+    }
+    if (frameCount == 1) {
+      currentPayloadDeadline = now + flushPolicy.maxDelayNanos;
+      scheduleFlush(flushPolicy.maxDelayNanos);
+    } else if (now - currentPayloadDeadline >= 0) {
+      flushFromPolicy(SegmentFlushPolicy.Reason.MAX_DELAY);
+    }
+  }
+
+  private void flushFromPolicy(SegmentFlushPolicy.Reason reason) {
+    onPolicyFlush(reason, currentPayloadLength, currentPayloadFrames.size());
+    processCurrentPayload();
+    resetCurrentPayload();
+  }
+
   private void processCurrentPayload() {
     assert currentPayloadLength <= maxPayloadLength;
-    B payload = primitiveCodec.allocate(currentPayloadLength);
-    for (Frame frame : currentPayloadFrames) {
-      // Note that the body size will be computed twice, we already checked it when we added the
-      // frame but haven't kept it. This is a quick CPU-bound operation so it shouldn't be a
-      // problem.
-      frameCodec.encodeInto(frame, -1, payload);
+    B payload = allocatePayload(currentPayloadLength);
+    int initialSize = primitiveCodec.sizeOf(payload);
+    boolean computeCrc = computesPayloadCrc();
+    if (computeCrc) {
+      Crc.initCrc32(payloadCrc);
     }
-    assert primitiveCodec.sizeOf(payload) == currentPayloadLength;
+    for (int i = 0; i < currentPayloadFrames.size(); i++) {
+      int frameStart = primitiveCodec.sizeOf(payload);
+      frameCodec.encodeInto(currentPayloadFrames.get(i), currentPayloadBodySizes[i], payload);
+      if (computeCrc) {
+        primitiveCodec.updateCrc(
+            payload, frameStart, primitiveCodec.sizeOf(payload) - frameStart, payloadCrc);
+      }
+    }
+    assert primitiveCodec.sizeOf(payload) - initialSize == currentPayloadLength;
     StateT state = mergeStates(currentPayloadStates);
-    processSegment(new Segment<>(payload, true), state);
+    Segment<B> segment =
+        computeCrc
+            ? new Segment<>(payload, true, (int) payloadCrc.getValue())
+            : new Segment<>(payload, true);
+    processSegment(segment, state);
   }
 
   private void resetCurrentPayload() {
@@ -201,4 +535,15 @@ public abstract class SegmentBuilder<B, StateT> {
     currentPayloadStates.clear();
     currentPayloadLength = 0;
   }
+
+  private class PendingSlices {
+    final List<Segment<B>> slices;
+    final List<StateT> states;
+    int next;
+
+    PendingSlices(List<Segment<B>> slices, List<StateT> states) {
+      this.slices = slices;
+      this.states = states;
+    }
+  }
 }
@@ -16,7 +16,11 @@
 package com.datastax.oss.protocol.internal;
 
 import com.datastax.oss.protocol.internal.util.Crc;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 public class SegmentCodec<B> {
 
@@ -26,14 +30,39 @@ public class SegmentCodec<B> {
   public static final int CRC24_LENGTH = 3;
   public static final int CRC32_LENGTH = 4;
 
+  /** The size of the largest possible encoded segment: header, CRC24, full payload and CRC32. */
+  public static final int MAX_ENCODED_LENGTH =
+      COMPRESSED_HEADER_LENGTH + CRC24_LENGTH + Segment.PROTOCOL_MAX_PAYLOAD_LENGTH + CRC32_LENGTH;
+
   private final PrimitiveCodec<B> primitiveCodec;
   private final Compressor<B> compressor;
   private final boolean compress;
+  private final int maxPayloadLength;
 
   public SegmentCodec(PrimitiveCodec<B> primitiveCodec, Compressor<B> compressor) {
+    this(primitiveCodec, compressor, Segment.PROTOCOL_MAX_PAYLOAD_LENGTH);
+  }
+
+  /**
+   * Creates an instance with a specific maximum payload length for outgoing segments (this should
+   * match the value used by the {@link SegmentBuilder} of the same connection). Incoming segments
+   * are accepted up to {@link Segment#PROTOCOL_MAX_PAYLOAD_LENGTH}, regardless of this setting.
+   *
+   * @throws IllegalArgumentException if the length is not strictly positive, or greater than {@link
+   *     Segment#PROTOCOL_MAX_PAYLOAD_LENGTH}.
+   */
+  public SegmentCodec(
+      PrimitiveCodec<B> primitiveCodec, Compressor<B> compressor, int maxPayloadLength) {
+    Segment.checkMaxPayloadLength(maxPayloadLength);
     this.primitiveCodec = primitiveCodec;
     this.compressor = compressor;
     this.compress = !(compressor instanceof NoopCompressor);
+    this.maxPayloadLength = maxPayloadLength;
+  }
+
+  /** The maximum payload length of the segments encoded by this codec. */
+  public int maxPayloadLength() {
+    return maxPayloadLength;
   }
 
   /** The length of the segment header, excluding the 3-byte trailing CRC. */
@@ -44,7 +73,7 @@ public class SegmentCodec<B> {
   public void encode(Segment<B> segment, List<Object> out) {
     B uncompressedPayload = segment.payload;
     int uncompressedPayloadLength = primitiveCodec.sizeOf(uncompressedPayload);
-    assert uncompressedPayloadLength <= Segment.MAX_PAYLOAD_LENGTH;
+    assert uncompressedPayloadLength <= maxPayloadLength;
     B encodedPayload;
     if (compress) {
       primitiveCodec.markReaderIndex(uncompressedPayload);
@@ -58,7 +87,6 @@ public class SegmentCodec<B> {
         uncompressedPayloadLength = 0;
       } else {
         encodedPayload = compressedPayload;
-        primitiveCodec.release(uncompressedPayload);
       }
     } else {
       encodedPayload = uncompressedPayload;
@@ -67,21 +95,188 @@ public class SegmentCodec<B> {
 
     B header = encodeHeader(payloadLength, uncompressedPayloadLength, segment.isSelfContained);
 
-    int payloadCrc = Crc.computeCrc32(encodedPayload, primitiveCodec);
-    B trailer = primitiveCodec.allocate(CRC32_LENGTH);
-    for (int i = 0; i < CRC32_LENGTH; i++) {
-      primitiveCodec.writeByte((byte) (payloadCrc & 0xFF), trailer);
-      payloadCrc >>= 8;
-    }
+    // The precomputed CRC can be reused if we ended up not compressing
+    int payloadCrc =
+        (segment.hasPayloadCrc && encodedPayload == uncompressedPayload)
+            ? segment.payloadCrc
+            : Crc.computeCrc32(encodedPayload, primitiveCodec);
+    B trailer = primitiveCodec.allocate(CRC32_LENGTH, AllocationHint.SEGMENT_TRAILER);
+    writeTrailer(payloadCrc, trailer);
 
     out.add(header);
     out.add(encodedPayload);
     out.add(trailer);
+    // Only release at the end: if anything above fails, the caller still owns the input
+    if (encodedPayload != uncompressedPayload) {
+      primitiveCodec.release(uncompressedPayload);
+    }
+  }
+
+  /**
+   * Allocates a buffer for a segment that will be encoded with {@link
+   * #encodeWithReservedHeader(Object, List)}: the header is already written, the caller must write
+   * exactly {@code payloadLength} bytes of payload after it. The buffer also has enough capacity
+   * for the trailing CRC.
+   *
+   * <p>This is only possible without compression, because the header contains the length of the
+   * encoded payload, which can't be known before compressing.
+   *
+   * @throws IllegalStateException if this codec uses compression.
+   */
+  public B allocateWithReservedHeader(int payloadLength, boolean isSelfContained) {
+    if (compress) {
+      throw new IllegalStateException("Can't reserve the header of a compressed segment");
+    }
+    assert payloadLength <= maxPayloadLength;
+    int headerLength = headerLength() + CRC24_LENGTH;
+    B buffer =
+        primitiveCodec.allocate(
+            headerLength + payloadLength + CRC32_LENGTH, AllocationHint.SEGMENT);
+    writeHeader(payloadLength, 0, isSelfContained, buffer);
+    return buffer;
+  }
+
+  /**
+   * Completes a segment that was allocated with {@link #allocateWithReservedHeader(int, boolean)},
+   * by appending the payload's CRC in place.
+   *
+   * <p>Unlike {@link #encode(Segment, List)}, this adds a single buffer to {@code out}, so that the
+   * whole segment can be written to the socket at once.
+   */
+  public void encodeWithReservedHeader(B buffer, List<Object> out) {
+    int headerLength = headerLength() + CRC24_LENGTH;
+    assert primitiveCodec.sizeOf(buffer) >= headerLength;
+    assert primitiveCodec.sizeOf(buffer) - headerLength <= maxPayloadLength;
+
+    // Skip the header to compute the payload's CRC, without consuming the buffer
+    primitiveCodec.markReaderIndex(buffer);
+    for (int i = 0; i < headerLength; i++) {
+      primitiveCodec.readByte(buffer);
+    }
+    int payloadCrc = Crc.computeCrc32(buffer, primitiveCodec);
+    primitiveCodec.resetReaderIndex(buffer);
+
+    writeTrailer(payloadCrc, buffer);
+    out.add(buffer);
+  }
+
+  /**
+   * Same as {@link #encodeWithReservedHeader(Object, List)}, but reuses the segment's precomputed
+   * CRC if it has one.
+   */
+  public void encodeWithReservedHeader(Segment<B> segment, List<Object> out) {
+    if (segment.hasPayloadCrc) {
+      writeTrailer(segment.payloadCrc, segment.payload);
+      out.add(segment.payload);
+    } else {
+      encodeWithReservedHeader(segment.payload, out);
+    }
+  }
+
+  /**
+   * Encodes a sequence of segments concurrently, typically the slices of a large frame (see {@link
+   * SegmentBuilder#processSlices(List, List)}).
+   *
+   * <p>Each segment is compressed and checksummed in a separate task submitted to {@code executor}
+   * (for example {@link java.util.concurrent.ForkJoinPool#commonPool()}). The returned future
+   * completes with the encoded buffers of all segments, in the same order as the input: three
+   * elements per segment, as described in {@link #encode(Segment, List)}. If any segment fails to
+   * encode, the buffers of the other segments are released and the future completes exceptionally.
+   *
+   * <p>In all cases, the payloads of the input segments are released (even if the executor rejects
+   * a task, in which case the future also completes exceptionally).
+   *
+   * <p>This requires the {@link Compressor} to be thread-safe. A single segment is encoded
+   * synchronously on the calling thread, since there is nothing to gain from a task switch.
+   */
+  public CompletableFuture<List<Object>> encodeAll(List<Segment<B>> segments, Executor executor) {
+    if (segments.size() == 1) {
+      try {
+        return CompletableFuture.completedFuture(encodeOrRelease(segments.get(0)));
+      } catch (RuntimeException e) {
+        return failedFuture(e);
+      }
+    }
+    List<CompletableFuture<List<Object>>> tasks = new ArrayList<>(segments.size());
+    for (int i = 0; i < segments.size(); i++) {
+      Segment<B> segment = segments.get(i);
+      try {
+        tasks.add(CompletableFuture.supplyAsync(() -> encodeOrRelease(segment), executor));
+      } catch (RejectedExecutionException e) {
+        // This segment and the next ones will never be encoded. The tasks already submitted are
+        // handled below, like any other failure.
+        for (int j = i; j < segments.size(); j++) {
+          primitiveCodec.release(segments.get(j).payload);
+        }
+        tasks.add(failedFuture(e));
+        break;
+      }
+    }
+    CompletableFuture<List<Object>> result = new CompletableFuture<>();
+    CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0]))
+        .whenComplete(
+            (ignored, error) -> {
+              if (error == null) {
+                List<Object> out = new ArrayList<>(3 * segments.size());
+                for (CompletableFuture<List<Object>> task : tasks) {
+                  out.addAll(task.join());
+                }
+                result.complete(out);
+              } else {
+                for (CompletableFuture<List<Object>> task : tasks) {
+                  if (!task.isCompletedExceptionally()) {
+                    releaseAll(task.join());
+                  }
+                }
+                result.completeExceptionally(error);
+              }
+            });
+    return result;
+  }
+
+  private List<Object> encodeOrRelease(Segment<B> segment) {
+    List<Object> out = new ArrayList<>(3);
+    try {
+      encode(segment, out);
+    } catch (RuntimeException e) {
+      // encode() doesn't release its input if it fails
+      primitiveCodec.release(segment.payload);
+      throw e;
+    }
+    return out;
+  }
+
+  private static <T> CompletableFuture<T> failedFuture(Throwable error) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(error);
+    return future;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void releaseAll(List<Object> buffers) {
+    for (Object buffer : buffers) {
+      primitiveCodec.release((B) buffer);
+    }
+  }
+
+  private void writeTrailer(int payloadCrc, B dest) {
+    for (int i = 0; i < CRC32_LENGTH; i++) {
+      primitiveCodec.writeByte((byte) (payloadCrc & 0xFF), dest);
+      payloadCrc >>= 8;
+    }
   }
 
   // Visible for testing
   B encodeHeader(int payloadLength, int uncompressedLength, boolean isSelfContained) {
-    assert payloadLength <= Segment.MAX_PAYLOAD_LENGTH;
+    B header =
+        primitiveCodec.allocate(headerLength() + CRC24_LENGTH, AllocationHint.SEGMENT_HEADER);
+    writeHeader(payloadLength, uncompressedLength, isSelfContained, header);
+    return header;
+  }
+
+  private void writeHeader(
+      int payloadLength, int uncompressedLength, boolean isSelfContained, B header) {
+    assert payloadLength <= Segment.PROTOCOL_MAX_PAYLOAD_LENGTH;
 
     int headerLength = headerLength();
 
@@ -97,7 +292,6 @@ public class SegmentCodec<B> {
 
     int headerCrc = Crc.computeCrc24(headerData, headerLength);
 
-    B header = primitiveCodec.allocate(headerLength + CRC24_LENGTH);
     // Write both data and CRC in little-endian order
     for (int i = 0; i < headerLength; i++) {
       int shift = i * 8;
@@ -107,8 +301,8 @@ public class SegmentCodec<B> {
       int shift = i * 8;
       primitiveCodec.writeByte((byte) (headerCrc >> shift & 0xFF), header);
     }
-    return header;
   }
+
   /**
    * Decodes a segment header and checks its CRC. It is assumed that the caller has already checked
    * that there are enough bytes.
@@ -138,11 +332,11 @@ public class SegmentCodec<B> {
               Integer.toHexString(actualHeaderCrc)));
     }
 
-    int payloadLength = (int) headerData & Segment.MAX_PAYLOAD_LENGTH;
+    int payloadLength = (int) headerData & Segment.PROTOCOL_MAX_PAYLOAD_LENGTH;
     headerData >>= 17;
     int uncompressedPayloadLength;
     if (compress) {
-      uncompressedPayloadLength = (int) headerData & Segment.MAX_PAYLOAD_LENGTH;
+      uncompressedPayloadLength = (int) headerData & Segment.PROTOCOL_MAX_PAYLOAD_LENGTH;
       headerData >>= 17;
     } else {
       uncompressedPayloadLength = -1;
@@ -179,9 +373,19 @@ public class SegmentCodec<B> {
     // Decompress payload if needed:
     B payload;
     if (compress && header.uncompressedPayloadLength > 0) {
+      // The declared length is at most 17 bits, so this bounds the allocation. But don't trust the
+      // compressor to honor it.
       payload =
           compressor.decompressWithoutLength(encodedPayload, header.uncompressedPayloadLength);
       primitiveCodec.release(encodedPayload);
+      int actualLength = primitiveCodec.sizeOf(payload);
+      if (actualLength != header.uncompressedPayloadLength) {
+        primitiveCodec.release(payload);
+        throw new IllegalArgumentException(
+            String.format(
+                "Decompressed payload length mismatch: header declared %d bytes, got %d",
+                header.uncompressedPayloadLength, actualLength));
+      }
     } else {
       payload = encodedPayload;
     }
@@ -0,0 +1,94 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a {@link SegmentBuilder} emits its current self-contained segment on its own,
+ * without waiting for it to fill up or for an explicit {@link SegmentBuilder#flush()}.
+ *
+ * <ul>
+ *   <li>{@link #maxFrames} and {@link #maxBytes}: the segment is emitted as soon as it contains
+ *       that many frames or bytes.
+ *   <li>{@link #maxDelayNanos}: the segment is emitted at most this long after its first frame was
+ *       added. Note that the builder can't schedule anything by itself, it relies on its owner
+ *       through {@link SegmentBuilder#scheduleFlush(long)} and {@link SegmentBuilder#flushIfDue()}.
+ *   <li>{@link #adaptive}: the builder tracks the average interval between incoming frames. If it
+ *       is greater than the maximum delay (low load: waiting for more frames would most likely not
+ *       coalesce anything), each segment is emitted immediately. Otherwise (high load), frames are
+ *       coalesced within the limits above.
+ * </ul>
+ *
+ * Instances of this class are immutable, and can be shared between builders.
+ */
+public class SegmentFlushPolicy {
+
+  /**
+   * A policy that never emits segments on its own: the caller must invoke {@link
+   * SegmentBuilder#flush()}. This is the default.
+   */
+  public static final SegmentFlushPolicy NONE =
+      new SegmentFlushPolicy(
+          Long.MAX_VALUE, TimeUnit.NANOSECONDS, Integer.MAX_VALUE, Integer.MAX_VALUE, false);
+
+  /** Why the policy decided to emit a segment. */
+  public enum Reason {
+    MAX_FRAMES,
+    MAX_BYTES,
+    MAX_DELAY,
+    LOW_LOAD,
+  }
+
+  public final long maxDelayNanos;
+  public final int maxFrames;
+  public final int maxBytes;
+  public final boolean adaptive;
+
+  /**
+   * @param maxDelay the maximum time that a frame can wait in the current segment. Use {@link
+   *     Long#MAX_VALUE} for no limit.
+   * @param maxFrames the maximum number of frames in a segment. Use {@link Integer#MAX_VALUE} for
+   *     no limit.
+   * @param maxBytes the payload length that triggers an emission. Use {@link Integer#MAX_VALUE} for
+   *     no limit (segments are always bounded by the builder's maximum payload length anyway).
+   * @param adaptive whether to emit immediately under low load (see the class-level javadocs).
+   */
+  public SegmentFlushPolicy(
+      long maxDelay, TimeUnit unit, int maxFrames, int maxBytes, boolean adaptive) {
+    ProtocolErrors.check(maxDelay > 0, "maxDelay must be strictly positive (got %d)", maxDelay);
+    ProtocolErrors.check(maxFrames > 0, "maxFrames must be strictly positive (got %d)", maxFrames);
+    ProtocolErrors.check(maxBytes > 0, "maxBytes must be strictly positive (got %d)", maxBytes);
+    ProtocolErrors.check(
+        !adaptive || maxDelay != Long.MAX_VALUE, "Adaptive mode requires a maximum delay");
+    this.maxDelayNanos = unit.toNanos(maxDelay);
+    this.maxFrames = maxFrames;
+    this.maxBytes = maxBytes;
+    this.adaptive = adaptive;
+  }
+
+  /** Whether the builder needs to track time to apply this policy. */
+  boolean usesClock() {
+    return adaptive || maxDelayNanos != Long.MAX_VALUE;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "SegmentFlushPolicy(maxDelayNanos=%d, maxFrames=%d, maxBytes=%d, adaptive=%s)",
+        maxDelayNanos, maxFrames, maxBytes, adaptive);
+  }
+}
@@ -39,6 +39,9 @@ public abstract class Result extends Message {
 
   public static class Codec extends Message.Codec {
     private final IntMap<SubCodec> subDecoders;
+    // Fast paths for the most common kinds, see decode()
+    private final SubCodec rowsSubCodec;
+    private final SubCodec voidSubCodec;
 
     public Codec(int protocolVersion, SubCodec... subCodecs) {
       super(ProtocolConstants.Opcode.RESULT, protocolVersion);
@@ -47,6 +50,8 @@ public abstract class Result extends Message {
         builder.put(subCodec.kind, subCodec);
       }
       this.subDecoders = builder.build();
+      this.rowsSubCodec = subDecoders.get(ProtocolConstants.ResultKind.ROWS);
+      this.voidSubCodec = subDecoders.get(ProtocolConstants.ResultKind.VOID);
     }
 
     /** Creates an instance with subdecoders for the default kinds. */
@@ -76,7 +81,15 @@ public abstract class Result extends Message {
     @Override
     public <B> Message decode(B source, PrimitiveCodec<B> decoder) {
       int kind = decoder.readInt(source);
-      return getSubCodec(kind).decode(source, decoder);
+      // ROWS and VOID are by far the most frequent kinds. Giving them their own call sites skips
+      // the map lookup, and keeps each site monomorphic so that the JIT can inline the sub-codec.
+      if (kind == ProtocolConstants.ResultKind.ROWS && rowsSubCodec != null) {
+        return rowsSubCodec.decode(source, decoder);
+      } else if (kind == ProtocolConstants.ResultKind.VOID && voidSubCodec != null) {
+        return voidSubCodec.decode(source, decoder);
+      } else {
+        return getSubCodec(kind).decode(source, decoder);
+      }
     }
 
     private SubCodec getSubCodec(int kind) {
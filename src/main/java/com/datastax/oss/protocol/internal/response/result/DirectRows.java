@@ -0,0 +1,420 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.response.result;
+
+import com.datastax.oss.protocol.internal.Message;
+import com.datastax.oss.protocol.internal.PrimitiveCodec;
+import com.datastax.oss.protocol.internal.PrimitiveSizes;
+import com.datastax.oss.protocol.internal.ProtocolConstants;
+import com.datastax.oss.protocol.internal.ProtocolErrors;
+import com.datastax.oss.protocol.internal.response.Result;
+import com.datastax.oss.protocol.internal.util.collection.NullAllowingImmutableList;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * A page of rows whose cell values are stored off-heap, in a single direct buffer.
+ *
+ * <p>The heap footprint is limited to two {@code int} arrays (the offset and length of each cell),
+ * regardless of the size of the values. Values are read with the typed accessors ({@link
+ * #getInt(int, int)}, {@link #getBytes(int, int)}...), which don't allocate, except for {@link
+ * #getBytes(int, int)} and {@link #getString(int, int)}. {@link #getData()} is also supported for
+ * compatibility with the {@link Rows} API, but it creates one list per row.
+ *
+ * <p>Instances are reference-counted: they start with a count of 1, {@link #retain()} increments
+ * it, and {@link #close()} decrements it. When it reaches 0, the buffer is handed back to the
+ * sub-codec's deallocator, and any further access fails with an {@link IllegalStateException}.
+ * Buffers returned by {@link #getBytes(int, int)} are views, they must not be used after that
+ * either.
+ *
+ * <p>To decode ROWS results as instances of this class, register a {@link SubCodec} in the {@link
+ * Result.Codec} of each protocol version.
+ */
+public class DirectRows extends Rows implements AutoCloseable {
+
+  private final RowsMetadata metadata;
+  private final int rowCount;
+  private final int columnCount;
+  private final int[] offsets;
+  // -1 for null values
+  private final int[] lengths;
+  private final AtomicInteger refCount = new AtomicInteger(1);
+  private final Consumer<ByteBuffer> deallocator;
+  private final LeakDetector.Tracker leakTracker;
+  private volatile ByteBuffer data;
+
+  DirectRows(
+      RowsMetadata metadata,
+      int rowCount,
+      ByteBuffer data,
+      int[] offsets,
+      int[] lengths,
+      Consumer<ByteBuffer> deallocator,
+      LeakDetector leakDetector) {
+    this.metadata = metadata;
+    this.rowCount = rowCount;
+    this.columnCount = metadata.columnCount;
+    this.data = data;
+    this.offsets = offsets;
+    this.lengths = lengths;
+    this.deallocator = deallocator;
+    this.leakTracker =
+        (leakDetector == null) ? null : leakDetector.track(this, data, deallocator, rowCount);
+  }
+
+  @Override
+  public RowsMetadata getMetadata() {
+    return metadata;
+  }
+
+  public int rowCount() {
+    return rowCount;
+  }
+
+  public int columnCount() {
+    return columnCount;
+  }
+
+  /** The number of bytes of off-heap memory used by the cell values. */
+  public int dataSize() {
+    return data().position();
+  }
+
+  public boolean isNull(int row, int column) {
+    return lengths[cell(row, column)] < 0;
+  }
+
+  /**
+   * Returns a read-only view of a value, or {@code null} if it is null. The view is only valid
+   * until this instance is closed.
+   */
+  public ByteBuffer getBytes(int row, int column) {
+    ByteBuffer data = data();
+    int cell = cell(row, column);
+    int length = lengths[cell];
+    if (length < 0) {
+      return null;
+    }
+    ByteBuffer view = data.asReadOnlyBuffer();
+    view.limit(offsets[cell] + length).position(offsets[cell]);
+    return view.slice();
+  }
+
+  public int getInt(int row, int column) {
+    return data().getInt(fixedLengthOffset(row, column, 4));
+  }
+
+  public long getLong(int row, int column) {
+    return data().getLong(fixedLengthOffset(row, column, 8));
+  }
+
+  public float getFloat(int row, int column) {
+    return data().getFloat(fixedLengthOffset(row, column, 4));
+  }
+
+  public double getDouble(int row, int column) {
+    return data().getDouble(fixedLengthOffset(row, column, 8));
+  }
+
+  public boolean getBoolean(int row, int column) {
+    return data().get(fixedLengthOffset(row, column, 1)) != 0;
+  }
+
+  /** Decodes a value as a UTF-8 string, or returns {@code null} if it is null. */
+  public String getString(int row, int column) {
+    ByteBuffer bytes = getBytes(row, column);
+    return (bytes == null) ? null : StandardCharsets.UTF_8.decode(bytes).toString();
+  }
+
+  /**
+   * Returns the rows as lists of {@link #getBytes(int, int) views}. This allocates a list per row,
+   * the typed accessors should be preferred.
+   */
+  @Override
+  public Queue<List<ByteBuffer>> getData() {
+    Queue<List<ByteBuffer>> result = new ArrayDeque<>(rowCount);
+    for (int i = 0; i < rowCount; i++) {
+      NullAllowingImmutableList.Builder<ByteBuffer> row =
+          NullAllowingImmutableList.builder(columnCount);
+      for (int j = 0; j < columnCount; j++) {
+        row.add(getBytes(i, j));
+      }
+      result.add(row.build());
+    }
+    return result;
+  }
+
+  /** Increments the reference count. */
+  public DirectRows retain() {
+    int count;
+    do {
+      count = refCount.get();
+      if (count <= 0) {
+        throw new IllegalStateException("Can't retain DirectRows that were already closed");
+      }
+    } while (!refCount.compareAndSet(count, count + 1));
+    return this;
+  }
+
+  /** Decrements the reference count, and frees the off-heap buffer if it reaches 0. */
+  @Override
+  public void close() {
+    int count = refCount.decrementAndGet();
+    if (count == 0) {
+      ByteBuffer toFree = data;
+      data = null;
+      if (leakTracker != null) {
+        leakTracker.untrack();
+      }
+      deallocator.accept(toFree);
+    } else if (count < 0) {
+      refCount.incrementAndGet();
+      throw new IllegalStateException("DirectRows were already closed");
+    }
+  }
+
+  public int refCount() {
+    return Math.max(refCount.get(), 0);
+  }
+
+  @Override
+  public String toString() {
+    return "ROWS(" + rowCount + " x " + columnCount + " columns, direct)";
+  }
+
+  private ByteBuffer data() {
+    ByteBuffer result = data;
+    if (result == null) {
+      throw new IllegalStateException("DirectRows were already closed");
+    }
+    return result;
+  }
+
+  private int cell(int row, int column) {
+    if (row < 0 || row >= rowCount || column < 0 || column >= columnCount) {
+      throw new IndexOutOfBoundsException(
+          String.format(
+              "Invalid cell (%d, %d) for %d rows x %d columns",
+              row, column, rowCount, columnCount));
+    }
+    return row * columnCount + column;
+  }
+
+  private int fixedLengthOffset(int row, int column, int expectedLength) {
+    int cell = cell(row, column);
+    // Not ProtocolErrors.check: there is no overload for 4 arguments, they would be boxed on every
+    // call
+    if (lengths[cell] != expectedLength) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Expected %d bytes at (%d, %d), got %d", expectedLength, row, column, lengths[cell]));
+    }
+    return offsets[cell];
+  }
+
+  public static class SubCodec extends Result.SubCodec {
+
+    private final IntFunction<ByteBuffer> allocator;
+    private final Consumer<ByteBuffer> deallocator;
+    private final LeakDetector leakDetector;
+    // To encode other Rows implementations
+    private final DefaultRows.SubCodec defaultSubCodec;
+
+    /**
+     * Creates an instance that allocates with {@link ByteBuffer#allocateDirect(int)}, leaves the
+     * buffers to the garbage collector when they are closed, and doesn't detect leaks.
+     */
+    public SubCodec(int protocolVersion) {
+      this(protocolVersion, ByteBuffer::allocateDirect, buffer -> {}, null);
+    }
+
+    /**
+     * @param allocator allocates a direct buffer with at least the given capacity (for example
+     *     {@link com.datastax.oss.protocol.internal.util.SizeClassPool#acquire(int)}).
+     * @param deallocator invoked when an instance is closed, or when a leak is detected.
+     * @param leakDetector if not null, instances are tracked and reported if they get
+     *     garbage-collected without being closed. This has a cost (a phantom reference and an
+     *     allocation stack trace per instance), it is intended for debugging.
+     */
+    public SubCodec(
+        int protocolVersion,
+        IntFunction<ByteBuffer> allocator,
+        Consumer<ByteBuffer> deallocator,
+        LeakDetector leakDetector) {
+      super(ProtocolConstants.ResultKind.ROWS, protocolVersion);
+      this.allocator = allocator;
+      this.deallocator = deallocator;
+      this.leakDetector = leakDetector;
+      this.defaultSubCodec = new DefaultRows.SubCodec(protocolVersion);
+    }
+
+    @Override
+    public <B> void encode(B dest, Message message, PrimitiveCodec<B> encoder) {
+      Rows rows = (Rows) message;
+      if (!(rows instanceof DirectRows)) {
+        defaultSubCodec.encode(dest, rows, encoder);
+        return;
+      }
+      DirectRows directRows = (DirectRows) rows;
+      directRows.metadata.encode(dest, encoder, false, protocolVersion);
+      encoder.writeInt(directRows.rowCount, dest);
+      for (int i = 0; i < directRows.rowCount; i++) {
+        for (int j = 0; j < directRows.columnCount; j++) {
+          encoder.writeBytes(directRows.getBytes(i, j), dest);
+        }
+      }
+    }
+
+    @Override
+    public int encodedSize(Message message) {
+      Rows rows = (Rows) message;
+      if (!(rows instanceof DirectRows)) {
+        return defaultSubCodec.encodedSize(rows);
+      }
+      DirectRows directRows = (DirectRows) rows;
+      int size = directRows.metadata.encodedSize(false, protocolVersion) + PrimitiveSizes.INT;
+      for (int length : directRows.lengths) {
+        size += PrimitiveSizes.INT + Math.max(length, 0);
+      }
+      return size;
+    }
+
+    @Override
+    public <B> Message decode(B source, PrimitiveCodec<B> decoder) {
+      RowsMetadata metadata = RowsMetadata.decode(source, decoder, false, protocolVersion);
+      int rowCount = decoder.readInt(source);
+      long cellCount = (long) rowCount * metadata.columnCount;
+      // Each cell has a 4-byte length prefix. This only bounds the count, the source might hold
+      // other frames after this one.
+      long remaining = decoder.sizeOf(source);
+      ProtocolErrors.check(
+          rowCount >= 0 && cellCount * PrimitiveSizes.INT <= remaining,
+          "Invalid row count %d for %d bytes",
+          rowCount,
+          remaining);
+      // First pass on the lengths only, to allocate the direct buffer with the exact size
+      int[] offsets = new int[(int) cellCount];
+      int[] lengths = new int[(int) cellCount];
+      int dataSize = 0;
+      decoder.markReaderIndex(source);
+      for (int i = 0; i < cellCount; i++) {
+        int length = decoder.skipBytes(source);
+        if (length < 0) {
+          lengths[i] = -1;
+        } else {
+          offsets[i] = dataSize;
+          lengths[i] = length;
+          dataSize += length;
+        }
+      }
+      decoder.resetReaderIndex(source);
+      // Second pass: copy each value once, from the source to the direct buffer
+      ByteBuffer data = allocator.apply(dataSize);
+      try {
+        for (int i = 0; i < cellCount; i++) {
+          decoder.readBytesInto(source, data);
+        }
+      } catch (RuntimeException e) {
+        deallocator.accept(data);
+        throw e;
+      }
+      return new DirectRows(metadata, rowCount, data, offsets, lengths, deallocator, leakDetector);
+    }
+  }
+
+  /**
+   * Reports the instances of {@link DirectRows} that get garbage-collected without being closed,
+   * and frees their buffer. Detection happens when new instances are tracked, or when {@link
+   * #reportLeaks()} is invoked explicitly.
+   */
+  public static class LeakDetector {
+
+    private final Consumer<String> reporter;
+    private final ReferenceQueue<DirectRows> queue = new ReferenceQueue<>();
+    private final Map<Tracker, Boolean> trackers = new ConcurrentHashMap<>();
+
+    /** @param reporter receives a description of each leak, including the allocation site. */
+    public LeakDetector(Consumer<String> reporter) {
+      this.reporter = reporter;
+    }
+
+    /** Processes the leaks detected so far, and returns their number. */
+    public int reportLeaks() {
+      int count = 0;
+      Tracker tracker;
+      while ((tracker = (Tracker) queue.poll()) != null) {
+        if (trackers.remove(tracker) != null) {
+          count += 1;
+          reporter.accept(tracker.describe());
+          tracker.deallocator.accept(tracker.buffer);
+        }
+      }
+      return count;
+    }
+
+    Tracker track(
+        DirectRows rows, ByteBuffer buffer, Consumer<ByteBuffer> deallocator, int rowCount) {
+      reportLeaks();
+      Tracker tracker = new Tracker(rows, buffer, deallocator, rowCount);
+      trackers.put(tracker, Boolean.TRUE);
+      return tracker;
+    }
+
+    class Tracker extends PhantomReference<DirectRows> {
+      // Strong references, the buffer must outlive the rows if they leak
+      private final ByteBuffer buffer;
+      private final Consumer<ByteBuffer> deallocator;
+      private final int rowCount;
+      private final Throwable allocationSite;
+
+      Tracker(DirectRows rows, ByteBuffer buffer, Consumer<ByteBuffer> deallocator, int rowCount) {
+        super(rows, queue);
+        this.buffer = buffer;
+        this.deallocator = deallocator;
+        this.rowCount = rowCount;
+        this.allocationSite = new Throwable();
+      }
+
+      void untrack() {
+        trackers.remove(this);
+        clear();
+      }
+
+      String describe() {
+        StringBuilder builder =
+            new StringBuilder(
+                String.format(
+                    "DirectRows (%d rows, %d bytes) were garbage-collected without being closed. "
+                        + "Allocated at:",
+                    rowCount, buffer.position()));
+        for (StackTraceElement element : allocationSite.getStackTrace()) {
+          builder.append("\n\tat ").append(element);
+        }
+        return builder.toString();
+      }
+    }
+  }
+}
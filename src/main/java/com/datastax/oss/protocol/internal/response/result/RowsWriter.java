@@ -0,0 +1,222 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.response.result;
+
+import com.datastax.oss.protocol.internal.AllocationHint;
+import com.datastax.oss.protocol.internal.PrimitiveCodec;
+import com.datastax.oss.protocol.internal.PrimitiveSizes;
+import com.datastax.oss.protocol.internal.ProtocolConstants;
+import com.datastax.oss.protocol.internal.ProtocolErrors;
+import com.datastax.oss.protocol.internal.RawMessage;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes a ROWS result incrementally, for servers that stream rows from storage instead of
+ * materializing a {@link DefaultRows}.
+ *
+ * <p>Rows are encoded as soon as they are {@link #addRow(List) added}, into buffers of {@code
+ * chunkSize} bytes that are concatenated as they fill up. When the page is {@link
+ * #finish(ByteBuffer) finished}, the metadata and the row count are encoded into a separate header,
+ * that is prepended to the rows. The result is a {@link RawMessage}, that can be sent as-is in a
+ * response frame:
+ *
+ * <pre>
+ * RowsWriter&lt;B&gt; writer = new RowsWriter&lt;&gt;(primitiveCodec, metadata, protocolVersion, 1024 * 1024);
+ * while (cursor.hasNext() &amp;&amp; writer.addRow(cursor.peek())) {
+ *   cursor.next();
+ * }
+ * RawMessage&lt;B&gt; page = writer.finish(cursor.hasNext() ? cursor.pagingState() : null);
+ * </pre>
+ *
+ * The caller owns the body of the returned message, and must release it once the frame has been
+ * encoded. Instances of this class are not thread-safe, and can only produce one page.
+ *
+ * @param <B> the binary representation we're manipulating.
+ */
+public class RowsWriter<B> {
+
+  public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+  private final PrimitiveCodec<B> primitiveCodec;
+  private final RowsMetadata metadata;
+  private final int protocolVersion;
+  private final int maxPageBytes;
+  private final int chunkSize;
+
+  // The chunks that are full, concatenated
+  private B fullChunks;
+  private B currentChunk;
+  private int currentChunkRemaining;
+  private int rowCount;
+  private int rowBytes;
+  private boolean finished;
+
+  public RowsWriter(
+      PrimitiveCodec<B> primitiveCodec,
+      RowsMetadata metadata,
+      int protocolVersion,
+      int maxPageBytes) {
+    this(primitiveCodec, metadata, protocolVersion, maxPageBytes, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * @param metadata the metadata of the page. Its paging state is ignored, it is provided to {@link
+   *     #finish(ByteBuffer)} instead.
+   * @param maxPageBytes the maximum size of the encoded rows (excluding the metadata). Once it is
+   *     reached, {@link #addRow(List)} rejects new rows.
+   * @param chunkSize the size of the buffers that the rows are encoded into. Rows that are larger
+   *     get a dedicated buffer.
+   */
+  public RowsWriter(
+      PrimitiveCodec<B> primitiveCodec,
+      RowsMetadata metadata,
+      int protocolVersion,
+      int maxPageBytes,
+      int chunkSize) {
+    ProtocolErrors.check(
+        maxPageBytes > 0, "maxPageBytes must be strictly positive (got %d)", maxPageBytes);
+    ProtocolErrors.check(chunkSize > 0, "chunkSize must be strictly positive (got %d)", chunkSize);
+    this.primitiveCodec = primitiveCodec;
+    this.metadata = metadata;
+    this.protocolVersion = protocolVersion;
+    this.maxPageBytes = maxPageBytes;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Encodes a row.
+   *
+   * @return true if the row was added, false if it would make the page exceed its maximum size (in
+   *     which case nothing was written). The first row of a page is always accepted.
+   */
+  public boolean addRow(List<ByteBuffer> values) {
+    checkNotFinished();
+    ProtocolErrors.check(
+        values.size() == metadata.columnCount,
+        "Expected %d values, got %d",
+        metadata.columnCount,
+        values.size());
+    int size = 0;
+    for (ByteBuffer value : values) {
+      size += PrimitiveSizes.sizeOfBytes(value);
+    }
+    if (rowCount > 0 && rowBytes + size > maxPageBytes) {
+      return false;
+    }
+    if (currentChunk == null || size > currentChunkRemaining) {
+      nextChunk(size);
+    }
+    for (ByteBuffer value : values) {
+      primitiveCodec.writeBytes(value, currentChunk);
+    }
+    currentChunkRemaining -= size;
+    rowCount += 1;
+    rowBytes += size;
+    return true;
+  }
+
+  /** Convenience method for {@link #addRow(List)}. */
+  public boolean addRow(ByteBuffer... values) {
+    return addRow(Arrays.asList(values));
+  }
+
+  public int rowCount() {
+    return rowCount;
+  }
+
+  /** The size of the rows encoded so far (excluding the metadata). */
+  public int rowBytes() {
+    return rowBytes;
+  }
+
+  /**
+   * Completes the page.
+   *
+   * @param pagingState the paging state if there are more pages, or null if this is the last one.
+   * @return the complete body of a RESULT response.
+   */
+  public RawMessage<B> finish(ByteBuffer pagingState) {
+    checkNotFinished();
+    finished = true;
+    RowsMetadata pageMetadata = withPagingState(pagingState);
+
+    int headerSize =
+        PrimitiveSizes.INT // kind
+            + pageMetadata.encodedSize(false, protocolVersion)
+            + PrimitiveSizes.INT; // row count
+    B header = primitiveCodec.allocate(headerSize, AllocationHint.FRAME_BODY);
+    primitiveCodec.writeInt(ProtocolConstants.ResultKind.ROWS, header);
+    pageMetadata.encode(header, primitiveCodec, false, protocolVersion);
+    primitiveCodec.writeInt(rowCount, header);
+
+    B rows = collectChunks();
+    B body = (rows == null) ? header : primitiveCodec.concat(header, rows);
+    return new RawMessage<>(true, ProtocolConstants.Opcode.RESULT, body, headerSize + rowBytes);
+  }
+
+  /** Releases the rows encoded so far, if the page is abandoned before being finished. */
+  public void abort() {
+    if (!finished) {
+      finished = true;
+      B rows = collectChunks();
+      if (rows != null) {
+        primitiveCodec.release(rows);
+      }
+    }
+  }
+
+  private void nextChunk(int minSize) {
+    B previous = currentChunk;
+    int size = Math.max(chunkSize, minSize);
+    currentChunk = primitiveCodec.allocate(size, AllocationHint.FRAME_BODY);
+    currentChunkRemaining = size;
+    if (previous != null) {
+      fullChunks = (fullChunks == null) ? previous : primitiveCodec.concat(fullChunks, previous);
+    }
+  }
+
+  private B collectChunks() {
+    B result = fullChunks;
+    if (currentChunk != null) {
+      result = (result == null) ? currentChunk : primitiveCodec.concat(result, currentChunk);
+    }
+    fullChunks = null;
+    currentChunk = null;
+    return result;
+  }
+
+  private RowsMetadata withPagingState(ByteBuffer pagingState) {
+    int flags =
+        (pagingState == null)
+            ? metadata.flags & ~ProtocolConstants.RowsFlag.HAS_MORE_PAGES
+            : metadata.flags | ProtocolConstants.RowsFlag.HAS_MORE_PAGES;
+    return new RowsMetadata(
+        flags,
+        metadata.columnSpecs,
+        metadata.columnCount,
+        pagingState,
+        metadata.pkIndices,
+        metadata.newResultMetadataId);
+  }
+
+  private void checkNotFinished() {
+    if (finished) {
+      throw new IllegalStateException("This writer has already completed its page");
+    }
+  }
+}
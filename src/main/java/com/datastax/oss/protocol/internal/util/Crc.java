@@ -16,6 +16,9 @@
 package com.datastax.oss.protocol.internal.util;
 
 import com.datastax.oss.protocol.internal.PrimitiveCodec;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.zip.CRC32;
 
 /** Copied and adapted from the server-side version. */
@@ -23,22 +26,79 @@ public class Crc {
 
   private static final ThreadLocal<CRC32> crc32 = ThreadLocal.withInitial(CRC32::new);
 
+  // Thread.isVirtual(), or null if the JDK doesn't have virtual threads
+  private static final MethodHandle IS_VIRTUAL = lookupIsVirtual();
+
   private static final byte[] initialBytes =
       new byte[] {(byte) 0xFA, (byte) 0x2D, (byte) 0x55, (byte) 0xCA};
 
+  /**
+   * Computes the CRC32 of a segment payload.
+   *
+   * <p>On platform threads, this reuses a thread-local {@link CRC32} instance. On virtual threads,
+   * which are typically short-lived and numerous, it allocates a new instance instead, to avoid
+   * filling each thread's local map; callers that process many payloads on the same virtual thread
+   * should rather use {@link #computeCrc32(Object, PrimitiveCodec, CRC32)}.
+   */
   public static <B> int computeCrc32(B buffer, PrimitiveCodec<B> codec) {
-    CRC32 crc = newCrc32();
+    CRC32 crc = isVirtualThread() ? newCrc32() : threadLocalCrc32();
     codec.updateCrc(buffer, crc);
     return (int) crc.getValue();
   }
 
-  private static CRC32 newCrc32() {
-    CRC32 crc = crc32.get();
+  /**
+   * Computes the CRC32 of a segment payload, with a caller-owned {@link CRC32} instance (which will
+   * be reset). This does not use any thread-local state.
+   */
+  public static <B> int computeCrc32(B buffer, PrimitiveCodec<B> codec, CRC32 crc) {
+    initCrc32(crc);
+    codec.updateCrc(buffer, crc);
+    return (int) crc.getValue();
+  }
+
+  /** Creates a new {@link CRC32}, initialized for a segment payload. */
+  public static CRC32 newCrc32() {
+    CRC32 crc = new CRC32();
+    crc.update(initialBytes);
+    return crc;
+  }
+
+  /**
+   * Resets a caller-owned CRC32 to the initial state of a segment payload CRC. This is for callers
+   * that compute the CRC incrementally, the result is {@code (int) crc.getValue()} once all the
+   * bytes have been fed.
+   */
+  public static void initCrc32(CRC32 crc) {
     crc.reset();
     crc.update(initialBytes);
+  }
+
+  private static CRC32 threadLocalCrc32() {
+    CRC32 crc = crc32.get();
+    initCrc32(crc);
     return crc;
   }
 
+  private static boolean isVirtualThread() {
+    if (IS_VIRTUAL == null) {
+      return false;
+    }
+    try {
+      return (boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+    } catch (Throwable t) {
+      return false;
+    }
+  }
+
+  private static MethodHandle lookupIsVirtual() {
+    try {
+      return MethodHandles.publicLookup()
+          .findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      return null;
+    }
+  }
+
   private static final int CRC24_INIT = 0x875060;
   /**
    * Polynomial chosen from https://users.ece.cmu.edu/~koopman/crc/index.html, by Philip Koopman
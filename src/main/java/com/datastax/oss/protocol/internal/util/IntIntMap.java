@@ -15,41 +15,98 @@
  */
 package com.datastax.oss.protocol.internal.util;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
-/** An {@link IntMap} containing other {@code IntMap}s. */
+/**
+ * Barebones map-like structure with two positive integer keys. It is immutable and optimized for
+ * lookups with low cardinalities (typically protocol version and opcode).
+ *
+ * <p>Entries are stored in a single flat array, with one row per distinct first key: a lookup is
+ * two array accesses, with no intermediary object to dereference.
+ */
 public class IntIntMap<V> {
 
   public static <V> Builder<V> builder() {
     return new Builder<>();
   }
 
-  private final IntMap<IntMap<V>> outer;
+  // Offset of each row in values, indexed by key1 (-1 if there is no row for that key)
+  private final int[] rowOffsets;
+  private final int rowLength;
+  private final Object[] values;
 
-  private IntIntMap(IntMap<IntMap<V>> outer) {
-    this.outer = outer;
+  private IntIntMap(Map<Integer, Map<Integer, V>> entries) {
+    int maxKey1 = -1;
+    int maxKey2 = -1;
+    for (Map.Entry<Integer, Map<Integer, V>> row : entries.entrySet()) {
+      maxKey1 = Math.max(maxKey1, row.getKey());
+      for (Integer key2 : row.getValue().keySet()) {
+        maxKey2 = Math.max(maxKey2, key2);
+      }
+    }
+    this.rowOffsets = new int[maxKey1 + 1];
+    Arrays.fill(rowOffsets, -1);
+    this.rowLength = maxKey2 + 1;
+    this.values = new Object[entries.size() * rowLength];
+    int offset = 0;
+    for (Map.Entry<Integer, Map<Integer, V>> row : entries.entrySet()) {
+      rowOffsets[row.getKey()] = offset;
+      for (Map.Entry<Integer, V> entry : row.getValue().entrySet()) {
+        values[offset + entry.getKey()] = entry.getValue();
+      }
+      offset += rowLength;
+    }
   }
 
   public V get(int key1, int key2) {
-    IntMap<V> inner = outer.get(key1);
-    return (inner == null) ? null : inner.get(key2);
+    if (key1 < 0 || key2 < 0) {
+      throw new IllegalArgumentException("keys must be positive");
+    }
+    if (key1 >= rowOffsets.length || key2 >= rowLength) {
+      return null;
+    }
+    int rowOffset = rowOffsets[key1];
+    if (rowOffset < 0) {
+      return null;
+    }
+    @SuppressWarnings("unchecked")
+    V value = (V) values[rowOffset + key2];
+    return value;
   }
 
   public static class Builder<V> {
-    private Map<Integer, IntMap.Builder<V>> innerBuilders = new HashMap<>();
+    private Map<Integer, Map<Integer, V>> rows = new HashMap<>();
 
     public Builder<V> put(int key1, int key2, V value) {
-      innerBuilders.computeIfAbsent(key1, k -> IntMap.builder()).put(key2, value);
+      if (key1 < 0 || key2 < 0) {
+        throw new IllegalArgumentException(
+            String.format("keys must be positive: %d, %d", key1, key2));
+      }
+      Map<Integer, V> row = rows.computeIfAbsent(key1, k -> new HashMap<>());
+      if (row.containsKey(key2)) {
+        throw new IllegalArgumentException(String.format("key already exists: %d, %d", key1, key2));
+      }
+      row.put(key2, value);
       return this;
     }
 
-    public IntIntMap<V> build() {
-      IntMap.Builder<IntMap<V>> outerBuilder = IntMap.builder();
-      for (Map.Entry<Integer, IntMap.Builder<V>> entry : innerBuilders.entrySet()) {
-        outerBuilder.put(entry.getKey(), entry.getValue().build());
+    /**
+     * Same as {@link #put(int, int, Object)}, but if the keys already exist, the previous value is
+     * replaced instead of failing.
+     */
+    public Builder<V> replace(int key1, int key2, V value) {
+      if (key1 < 0 || key2 < 0) {
+        throw new IllegalArgumentException(
+            String.format("keys must be positive: %d, %d", key1, key2));
       }
-      return new IntIntMap<>(outerBuilder.build());
+      rows.computeIfAbsent(key1, k -> new HashMap<>()).put(key2, value);
+      return this;
+    }
+
+    public IntIntMap<V> build() {
+      return new IntIntMap<>(rows);
     }
   }
 }
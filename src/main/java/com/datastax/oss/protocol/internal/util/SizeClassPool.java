@@ -0,0 +1,176 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.util;
+
+import com.datastax.oss.protocol.internal.AllocationHint;
+import com.datastax.oss.protocol.internal.PrimitiveCodec;
+import com.datastax.oss.protocol.internal.ProtocolErrors;
+import com.datastax.oss.protocol.internal.SegmentCodec;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * A reference buffer pool with fixed size classes, that {@link PrimitiveCodec} implementations can
+ * use to serve {@link PrimitiveCodec#allocate(int, AllocationHint)}.
+ *
+ * <p>A request is served from the smallest class that fits, so the returned buffer may be larger
+ * than requested (the caller is expected to track its own writer index). Requests larger than the
+ * largest class are allocated directly, with their exact size, and are never pooled.
+ *
+ * <p>Classes are selected on the size only, the {@link AllocationHint} is not taken into account:
+ * the fixed-size allocations that the hints single out (frame and segment headers, segment
+ * trailers) all map to the smallest {@link #defaultSizeClasses() default} class anyway. A codec
+ * that wants to keep separate free lists for some hints can use one pool per hint.
+ *
+ * <p>Each class keeps at most {@code maxPooledPerClass} free buffers; extra released buffers are
+ * left to the garbage collector. This class is thread-safe.
+ *
+ * @param <B> the binary representation we're manipulating.
+ */
+public class SizeClassPool<B> {
+
+  private static final int[] DEFAULT_SIZE_CLASSES = {
+    16, 256, 4 * 1024, 32 * 1024, SegmentCodec.MAX_ENCODED_LENGTH
+  };
+
+  /**
+   * Size classes that match the frame and segment codecs' most frequent allocations: frame headers
+   * (9 bytes), segment headers and trailers (up to 8 bytes), small messages, and full segments
+   * ({@link SegmentCodec#MAX_ENCODED_LENGTH}: a 128 KiB - 1 payload, plus its header and CRCs).
+   *
+   * @return a new array on each call, it can be modified freely.
+   */
+  public static int[] defaultSizeClasses() {
+    return Arrays.copyOf(DEFAULT_SIZE_CLASSES, DEFAULT_SIZE_CLASSES.length);
+  }
+
+  private final int[] sizeClasses;
+  private final int maxPooledPerClass;
+  private final IntFunction<B> allocator;
+  private final ToIntFunction<B> capacityOf;
+  private final Consumer<B> reset;
+  private final Queue<B>[] freeLists;
+  private final AtomicInteger[] freeCounts;
+
+  /**
+   * @param sizeClasses the capacities of the pooled buffers, in strictly increasing order.
+   * @param maxPooledPerClass the maximum number of free buffers retained for each class.
+   * @param allocator how to create a new buffer of a given capacity.
+   * @param capacityOf how to get the capacity of a buffer (used to find its class on release).
+   * @param reset how to prepare a released buffer for reuse (for example, reset its indices).
+   */
+  @SuppressWarnings("unchecked")
+  public SizeClassPool(
+      int[] sizeClasses,
+      int maxPooledPerClass,
+      IntFunction<B> allocator,
+      ToIntFunction<B> capacityOf,
+      Consumer<B> reset) {
+    ProtocolErrors.check(sizeClasses.length > 0, "At least one size class is required");
+    for (int i = 0; i < sizeClasses.length; i++) {
+      ProtocolErrors.check(
+          sizeClasses[i] > 0, "Size classes must be strictly positive (got %d)", sizeClasses[i]);
+      ProtocolErrors.check(
+          i == 0 || sizeClasses[i] > sizeClasses[i - 1],
+          "Size classes must be in strictly increasing order (got %d after %d)",
+          sizeClasses[i],
+          (i == 0) ? 0 : sizeClasses[i - 1]);
+    }
+    ProtocolErrors.check(
+        maxPooledPerClass >= 0, "maxPooledPerClass must be positive (got %d)", maxPooledPerClass);
+    this.sizeClasses = Arrays.copyOf(sizeClasses, sizeClasses.length);
+    this.maxPooledPerClass = maxPooledPerClass;
+    this.allocator = allocator;
+    this.capacityOf = capacityOf;
+    this.reset = reset;
+    this.freeLists = new Queue[sizeClasses.length];
+    this.freeCounts = new AtomicInteger[sizeClasses.length];
+    for (int i = 0; i < sizeClasses.length; i++) {
+      freeLists[i] = new ConcurrentLinkedQueue<>();
+      freeCounts[i] = new AtomicInteger();
+    }
+  }
+
+  /** Returns a buffer with a capacity of at least {@code size} bytes. */
+  public B acquire(int size) {
+    ProtocolErrors.check(size >= 0, "size must be positive (got %d)", size);
+    int index = classIndex(size);
+    if (index < 0) {
+      return allocator.apply(size);
+    }
+    B buffer = freeLists[index].poll();
+    if (buffer == null) {
+      return allocator.apply(sizeClasses[index]);
+    }
+    freeCounts[index].decrementAndGet();
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer to the pool. A buffer must not be released twice: with assertions enabled,
+   * this is detected and fails with an {@link AssertionError}.
+   *
+   * @return whether the buffer was retained. If not (its capacity does not match any class, or the
+   *     class is full), the caller can discard it or release it by other means.
+   */
+  public boolean release(B buffer) {
+    int capacity = capacityOf.applyAsInt(buffer);
+    int index = Arrays.binarySearch(sizeClasses, capacity);
+    if (index < 0) {
+      return false;
+    }
+    assert !containsSameInstance(freeLists[index], buffer) : "Buffer released twice: " + buffer;
+    AtomicInteger count = freeCounts[index];
+    if (count.incrementAndGet() > maxPooledPerClass) {
+      count.decrementAndGet();
+      return false;
+    }
+    reset.accept(buffer);
+    freeLists[index].offer(buffer);
+    return true;
+  }
+
+  // By identity: buffers such as ByteBuffer implement equals() on their contents
+  private static <B> boolean containsSameInstance(Queue<B> queue, B buffer) {
+    for (B candidate : queue) {
+      if (candidate == buffer) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** The number of free buffers currently retained for the class that would serve {@code size}. */
+  public int pooledCount(int size) {
+    int index = classIndex(size);
+    return (index < 0) ? 0 : freeCounts[index].get();
+  }
+
+  // The index of the smallest class that can hold size bytes, or -1 if it's too large.
+  private int classIndex(int size) {
+    int index = Arrays.binarySearch(sizeClasses, size);
+    if (index >= 0) {
+      return index;
+    }
+    int insertionPoint = -index - 1;
+    return (insertionPoint < sizeClasses.length) ? insertionPoint : -1;
+  }
+}
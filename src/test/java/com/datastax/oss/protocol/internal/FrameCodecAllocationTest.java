@@ -0,0 +1,117 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+import com.datastax.oss.protocol.internal.request.Execute;
+import com.datastax.oss.protocol.internal.request.query.QueryOptionsBuilder;
+import com.datastax.oss.protocol.internal.response.result.Void;
+import com.datastax.oss.protocol.internal.util.Bytes;
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Checks that encoding and decoding frames in a steady state only allocates the results.
+ *
+ * <p>The budget relies on the JIT: once the codecs are compiled, escape analysis removes the
+ * short-lived objects of the hot path (iterators, lambdas, etc.), and what remains is what the
+ * budget accounts for. With the interpreter only ({@code -Xint}) or without escape analysis, the
+ * measurement would be meaningless, so the test is skipped.
+ */
+public class FrameCodecAllocationTest {
+
+  // Per EXECUTE + RESULT/VOID round trip. The objects that are inherently produced (the encoded
+  // buffers and their arrays, the decoded frames, the Execute message with its ids and
+  // QueryOptions) amount to less than 500 bytes on a 64-bit JVM. A handful of boxed arguments and
+  // varargs arrays on the hot path (32 bytes each) would exceed the budget.
+  private static final long RESULT_OBJECTS_BUDGET = 576;
+
+  @Test
+  public void should_only_allocate_results_when_encoding_and_decoding_frames() {
+    ThreadMXBean threadBean = allocationTrackingBean();
+    long threadId = Thread.currentThread().getId();
+
+    HeapPrimitiveCodec primitiveCodec = HeapPrimitiveCodec.INSTANCE;
+    FrameCodec<HeapPrimitiveCodec.Buffer> clientCodec =
+        FrameCodec.defaultClient(primitiveCodec, Compressor.none());
+    FrameCodec<HeapPrimitiveCodec.Buffer> serverCodec =
+        FrameCodec.defaultServer(primitiveCodec, Compressor.none());
+    Frame execute =
+        Frame.forRequest(
+            ProtocolConstants.Version.V5,
+            1000,
+            false,
+            Collections.emptyMap(),
+            new Execute(
+                Bytes.getArray(Bytes.fromHexString("0xcafebabe")),
+                Bytes.getArray(Bytes.fromHexString("0xdeadbeef")),
+                new QueryOptionsBuilder().withPageSize(5000).build()));
+    Frame result =
+        Frame.forResponse(
+            ProtocolConstants.Version.V5,
+            1000,
+            null,
+            Collections.emptyMap(),
+            Collections.emptyList(),
+            Void.INSTANCE);
+
+    // Warm up, so that the measurement excludes class loading and JIT compilation
+    int checksum = 0;
+    for (int i = 0; i < 20_000; i++) {
+      checksum += roundTrip(clientCodec, serverCodec, execute, result);
+    }
+
+    int iterations = 10_000;
+    long before = threadBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < iterations; i++) {
+      checksum += roundTrip(clientCodec, serverCodec, execute, result);
+    }
+    long allocatedPerIteration =
+        (threadBean.getThreadAllocatedBytes(threadId) - before) / iterations;
+
+    assertThat(checksum).isEqualTo(30_000 * 2 * execute.streamId);
+    assertThat(allocatedPerIteration).isLessThan(RESULT_OBJECTS_BUDGET);
+  }
+
+  // Returns something computed from the decoded frames, to prevent dead code elimination
+  private static int roundTrip(
+      FrameCodec<HeapPrimitiveCodec.Buffer> clientCodec,
+      FrameCodec<HeapPrimitiveCodec.Buffer> serverCodec,
+      Frame execute,
+      Frame result) {
+    return serverCodec.decode(clientCodec.encode(execute)).streamId
+        + clientCodec.decode(serverCodec.encode(result)).streamId;
+  }
+
+  private static ThreadMXBean allocationTrackingBean() {
+    assumeTrue("Requires a JIT compiler", ManagementFactory.getCompilationMXBean() != null);
+    List<String> jvmArguments = ManagementFactory.getRuntimeMXBean().getInputArguments();
+    assumeFalse("Requires a JIT compiler", jvmArguments.contains("-Xint"));
+    assumeFalse("Requires escape analysis", jvmArguments.contains("-XX:-DoEscapeAnalysis"));
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof ThreadMXBean);
+    ThreadMXBean threadBean = (ThreadMXBean) bean;
+    assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+    return threadBean;
+  }
+}
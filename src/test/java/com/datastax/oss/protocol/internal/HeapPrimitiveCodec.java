@@ -0,0 +1,289 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A primitive codec that writes actual bytes to a heap array.
+ *
+ * <p>Unlike {@link com.datastax.oss.protocol.internal.binary.MockPrimitiveCodec}, it doesn't
+ * allocate anything beyond the buffers and the decoded values themselves, which makes it suitable
+ * to measure the allocations of the codecs.
+ */
+class HeapPrimitiveCodec implements PrimitiveCodec<HeapPrimitiveCodec.Buffer> {
+  static final HeapPrimitiveCodec INSTANCE = new HeapPrimitiveCodec();
+
+  static class Buffer {
+    private byte[] array;
+    private int readerIndex;
+    private int writerIndex;
+    private int markedReaderIndex;
+
+    Buffer(int capacity) {
+      this.array = new byte[capacity];
+    }
+
+    private void ensureWritable(int length) {
+      if (writerIndex + length > array.length) {
+        array = Arrays.copyOf(array, Math.max(array.length * 2, writerIndex + length));
+      }
+    }
+
+    private int checkReadable(int length) {
+      if (readerIndex + length > writerIndex) {
+        throw new IndexOutOfBoundsException(
+            String.format(
+                "Not enough bytes to read %d (reader index %d, writer index %d)",
+                length, readerIndex, writerIndex));
+      }
+      int start = readerIndex;
+      readerIndex += length;
+      return start;
+    }
+  }
+
+  @Override
+  public Buffer allocate(int size) {
+    return new Buffer(size);
+  }
+
+  @Override
+  public void release(Buffer toRelease) {
+    // nothing to do, the garbage collector reclaims the array
+  }
+
+  @Override
+  public int sizeOf(Buffer toMeasure) {
+    return toMeasure.writerIndex - toMeasure.readerIndex;
+  }
+
+  @Override
+  public Buffer concat(Buffer left, Buffer right) {
+    int rightSize = sizeOf(right);
+    left.ensureWritable(rightSize);
+    System.arraycopy(right.array, right.readerIndex, left.array, left.writerIndex, rightSize);
+    left.writerIndex += rightSize;
+    return left;
+  }
+
+  @Override
+  public void markReaderIndex(Buffer source) {
+    source.markedReaderIndex = source.readerIndex;
+  }
+
+  @Override
+  public void resetReaderIndex(Buffer source) {
+    source.readerIndex = source.markedReaderIndex;
+  }
+
+  @Override
+  public byte readByte(Buffer source) {
+    return source.array[source.checkReadable(1)];
+  }
+
+  @Override
+  public int readInt(Buffer source) {
+    return getInt(source.array, source.checkReadable(4));
+  }
+
+  @Override
+  public int readInt(Buffer source, int offset) {
+    if (offset + 4 > sizeOf(source)) {
+      throw new IndexOutOfBoundsException("Not enough bytes to read an int at offset " + offset);
+    }
+    return getInt(source.array, source.readerIndex + offset);
+  }
+
+  @Override
+  public InetAddress readInetAddr(Buffer source) {
+    int length = readByte(source) & 0xFF;
+    byte[] address =
+        Arrays.copyOfRange(source.array, source.checkReadable(length), source.readerIndex);
+    try {
+      return InetAddress.getByAddress(address);
+    } catch (UnknownHostException e) {
+      throw new IllegalArgumentException("Invalid address length: " + length, e);
+    }
+  }
+
+  @Override
+  public long readLong(Buffer source) {
+    int start = source.checkReadable(8);
+    return ((long) getInt(source.array, start) << 32)
+        | (getInt(source.array, start + 4) & 0xFFFFFFFFL);
+  }
+
+  @Override
+  public int readUnsignedShort(Buffer source) {
+    int start = source.checkReadable(2);
+    return (source.array[start] & 0xFF) << 8 | (source.array[start + 1] & 0xFF);
+  }
+
+  @Override
+  public ByteBuffer readBytes(Buffer source) {
+    int length = readInt(source);
+    if (length < 0) {
+      return null;
+    }
+    int start = source.checkReadable(length);
+    return ByteBuffer.wrap(Arrays.copyOfRange(source.array, start, start + length));
+  }
+
+  @Override
+  public byte[] readShortBytes(Buffer source) {
+    int length = readUnsignedShort(source);
+    int start = source.checkReadable(length);
+    return Arrays.copyOfRange(source.array, start, start + length);
+  }
+
+  @Override
+  public String readString(Buffer source) {
+    int length = readUnsignedShort(source);
+    return new String(source.array, source.checkReadable(length), length, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public String readLongString(Buffer source) {
+    int length = readInt(source);
+    return new String(source.array, source.checkReadable(length), length, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public Buffer readRetainedSlice(Buffer source, int sliceLength) {
+    int start = source.checkReadable(sliceLength);
+    Buffer slice = new Buffer(0);
+    slice.array = source.array;
+    slice.readerIndex = start;
+    slice.markedReaderIndex = start;
+    slice.writerIndex = start + sliceLength;
+    return slice;
+  }
+
+  @Override
+  public void updateCrc(Buffer source, CRC32 crc) {
+    crc.update(source.array, source.readerIndex, sizeOf(source));
+  }
+
+  @Override
+  public void updateCrc(Buffer source, int offset, int length, CRC32 crc) {
+    crc.update(source.array, source.readerIndex + offset, length);
+  }
+
+  @Override
+  public void writeRawBytes(Buffer source, Buffer dest) {
+    int length = sizeOf(source);
+    dest.ensureWritable(length);
+    System.arraycopy(source.array, source.readerIndex, dest.array, dest.writerIndex, length);
+    dest.writerIndex += length;
+  }
+
+  @Override
+  public void writeByte(byte b, Buffer dest) {
+    dest.ensureWritable(1);
+    dest.array[dest.writerIndex++] = b;
+  }
+
+  @Override
+  public void writeInt(int i, Buffer dest) {
+    dest.ensureWritable(4);
+    dest.array[dest.writerIndex++] = (byte) (i >>> 24);
+    dest.array[dest.writerIndex++] = (byte) (i >>> 16);
+    dest.array[dest.writerIndex++] = (byte) (i >>> 8);
+    dest.array[dest.writerIndex++] = (byte) i;
+  }
+
+  @Override
+  public void writeInetAddr(InetAddress address, Buffer dest) {
+    byte[] bytes = address.getAddress();
+    writeByte((byte) bytes.length, dest);
+    writeArray(bytes, 0, bytes.length, dest);
+  }
+
+  @Override
+  public void writeLong(long l, Buffer dest) {
+    writeInt((int) (l >>> 32), dest);
+    writeInt((int) l, dest);
+  }
+
+  @Override
+  public void writeUnsignedShort(int i, Buffer dest) {
+    dest.ensureWritable(2);
+    dest.array[dest.writerIndex++] = (byte) (i >>> 8);
+    dest.array[dest.writerIndex++] = (byte) i;
+  }
+
+  @Override
+  public void writeString(String s, Buffer dest) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    writeUnsignedShort(bytes.length, dest);
+    writeArray(bytes, 0, bytes.length, dest);
+  }
+
+  @Override
+  public void writeLongString(String s, Buffer dest) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    writeInt(bytes.length, dest);
+    writeArray(bytes, 0, bytes.length, dest);
+  }
+
+  @Override
+  public void writeBytes(ByteBuffer bytes, Buffer dest) {
+    if (bytes == null) {
+      writeInt(-1, dest);
+    } else {
+      int length = bytes.remaining();
+      writeInt(length, dest);
+      dest.ensureWritable(length);
+      bytes.duplicate().get(dest.array, dest.writerIndex, length);
+      dest.writerIndex += length;
+    }
+  }
+
+  @Override
+  public void writeBytes(byte[] bytes, Buffer dest) {
+    if (bytes == null) {
+      writeInt(-1, dest);
+    } else {
+      writeInt(bytes.length, dest);
+      writeArray(bytes, 0, bytes.length, dest);
+    }
+  }
+
+  @Override
+  public void writeShortBytes(byte[] bytes, Buffer dest) {
+    writeUnsignedShort(bytes.length, dest);
+    writeArray(bytes, 0, bytes.length, dest);
+  }
+
+  private static void writeArray(byte[] bytes, int offset, int length, Buffer dest) {
+    dest.ensureWritable(length);
+    System.arraycopy(bytes, offset, dest.array, dest.writerIndex, length);
+    dest.writerIndex += length;
+  }
+
+  private static int getInt(byte[] array, int start) {
+    return (array[start] & 0xFF) << 24
+        | (array[start + 1] & 0xFF) << 16
+        | (array[start + 2] & 0xFF) << 8
+        | (array[start + 3] & 0xFF);
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.datastax.oss.protocol.internal.binary.MockBinaryString;
+import com.datastax.oss.protocol.internal.binary.MockPrimitiveCodec;
+import com.datastax.oss.protocol.internal.request.Query;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class PipelinedSegmentDecoderTest {
+
+  private FrameCodec<MockBinaryString> clientCodec;
+  private List<Runnable> tasks;
+  private List<Frame> frames;
+  private List<Throwable> errors;
+  private PipelinedSegmentDecoder<MockBinaryString> decoder;
+
+  @Before
+  public void setup() {
+    clientCodec = FrameCodec.defaultClient(MockPrimitiveCodec.INSTANCE, Compressor.none());
+    tasks = new ArrayList<>();
+    frames = new ArrayList<>();
+    errors = new ArrayList<>();
+    decoder =
+        new PipelinedSegmentDecoder<>(
+            MockPrimitiveCodec.INSTANCE,
+            new PassThroughSegmentCodec(),
+            FrameCodec.defaultServer(MockPrimitiveCodec.INSTANCE, Compressor.none()),
+            tasks::add,
+            new PipelinedSegmentDecoder.Listener() {
+              @Override
+              public void onFrame(Frame frame) {
+                frames.add(frame);
+              }
+
+              @Override
+              public void onError(Throwable error) {
+                errors.add(error);
+              }
+            });
+  }
+
+  @Test
+  public void should_deliver_frames_in_order_when_segments_complete_out_of_order() {
+    decoder.submit(header(true), encode(query("a"), query("b")));
+    decoder.submit(header(true), encode(query("c")));
+    decoder.submit(header(true), encode(query("d"), query("e")));
+    assertThat(tasks).hasSize(3);
+
+    tasks.get(2).run();
+    tasks.get(1).run();
+    assertThat(frames).isEmpty();
+
+    tasks.get(0).run();
+    assertThat(queries()).containsExactly("a", "b", "c", "d", "e");
+    assertThat(decoder.drained()).isCompleted();
+    assertThat(errors).isEmpty();
+  }
+
+  @Test
+  public void should_reassemble_large_frame_from_slices() {
+    MockBinaryString frameBuffer = encode(query("large"));
+    MockBinaryString headerSlice =
+        MockPrimitiveCodec.INSTANCE.readRetainedSlice(
+            frameBuffer, FrameCodec.V3_ENCODED_HEADER_SIZE);
+
+    decoder.submit(header(false), headerSlice);
+    decoder.submit(header(false), frameBuffer);
+    decoder.submit(header(true), encode(query("small")));
+
+    for (int i = tasks.size() - 1; i >= 0; i--) {
+      tasks.get(i).run();
+    }
+    assertThat(queries()).containsExactly("large", "small");
+    assertThat(errors).isEmpty();
+  }
+
+  @Test
+  public void should_stop_delivering_after_error() {
+    decoder.submit(header(true), encode(query("a")));
+    decoder.submit(header(true), new MockBinaryString().byte_(0x01)); // not a valid frame
+    decoder.submit(header(true), encode(query("b")));
+
+    for (Runnable task : tasks) {
+      task.run();
+    }
+    assertThat(queries()).containsExactly("a");
+    assertThat(errors).hasSize(1);
+  }
+
+  @Test
+  public void should_release_source_and_report_error_if_executor_rejects_task() {
+    MockPrimitiveCodec primitiveCodec = Mockito.spy(MockPrimitiveCodec.INSTANCE);
+    PipelinedSegmentDecoder<MockBinaryString> rejectingDecoder =
+        new PipelinedSegmentDecoder<>(
+            primitiveCodec,
+            new PassThroughSegmentCodec(),
+            FrameCodec.defaultServer(MockPrimitiveCodec.INSTANCE, Compressor.none()),
+            task -> {
+              throw new RejectedExecutionException("mock rejection");
+            },
+            new PipelinedSegmentDecoder.Listener() {
+              @Override
+              public void onFrame(Frame frame) {
+                frames.add(frame);
+              }
+
+              @Override
+              public void onError(Throwable error) {
+                errors.add(error);
+              }
+            });
+    MockBinaryString source = encode(query("a"));
+
+    rejectingDecoder.submit(header(true), source);
+
+    Mockito.verify(primitiveCodec).release(source);
+    assertThat(rejectingDecoder.drained()).isCompleted();
+    assertThat(frames).isEmpty();
+    assertThat(errors).hasSize(1);
+    assertThat(errors.get(0)).isInstanceOf(RejectedExecutionException.class);
+  }
+
+  @Test
+  public void should_keep_releasing_sources_if_listener_fails_on_error() {
+    MockPrimitiveCodec primitiveCodec = Mockito.spy(MockPrimitiveCodec.INSTANCE);
+    PipelinedSegmentDecoder<MockBinaryString> failingDecoder =
+        new PipelinedSegmentDecoder<>(
+            primitiveCodec,
+            new PassThroughSegmentCodec(),
+            FrameCodec.defaultServer(MockPrimitiveCodec.INSTANCE, Compressor.none()),
+            tasks::add,
+            new PipelinedSegmentDecoder.Listener() {
+              @Override
+              public void onFrame(Frame frame) {
+                frames.add(frame);
+              }
+
+              @Override
+              public void onError(Throwable error) {
+                errors.add(error);
+                throw new IllegalStateException("mock listener failure");
+              }
+            });
+    MockBinaryString slice = encode(query("a"));
+
+    failingDecoder.submit(header(true), new MockBinaryString().byte_(0x01)); // not a valid frame
+    failingDecoder.submit(header(false), slice);
+    for (Runnable task : tasks) {
+      task.run();
+    }
+
+    assertThat(errors).hasSize(1);
+    assertThat(failingDecoder.drained()).isCompleted();
+    assertThat(failingDecoder.drained()).isNotCompletedExceptionally();
+    Mockito.verify(primitiveCodec).release(slice);
+  }
+
+  private MockBinaryString encode(Frame... toEncode) {
+    MockBinaryString result = new MockBinaryString();
+    for (Frame frame : toEncode) {
+      result.append(clientCodec.encode(frame));
+    }
+    return result;
+  }
+
+  private List<String> queries() {
+    List<String> result = new ArrayList<>();
+    for (Frame frame : frames) {
+      result.add(((Query) frame.message).query);
+    }
+    return result;
+  }
+
+  private static Frame query(String query) {
+    return Frame.forRequest(5, 0, false, Collections.emptyMap(), new Query(query));
+  }
+
+  private static SegmentCodec.Header header(boolean isSelfContained) {
+    // The contents don't matter, they are ignored by our codec
+    return new SegmentCodec.Header(0, 0, isSelfContained);
+  }
+
+  /**
+   * Bypasses the actual segment decoding, these tests are about the pipelining (segment decoding is
+   * covered in SegmentCodecTest).
+   */
+  private static class PassThroughSegmentCodec extends SegmentCodec<MockBinaryString> {
+    PassThroughSegmentCodec() {
+      super(MockPrimitiveCodec.INSTANCE, Compressor.none());
+    }
+
+    @Override
+    public Segment<MockBinaryString> decode(Header header, MockBinaryString source) {
+      return new Segment<>(source, header.isSelfContained);
+    }
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.Assume.assumeTrue;
+
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+import org.junit.Test;
+
+public class ProtocolErrorsTest {
+
+  @Test
+  public void should_format_message_when_check_fails() {
+    assertThatThrownBy(() -> ProtocolErrors.check(false, "a=%d b=%d", 1000, 2000))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("a=1000 b=2000");
+    assertThatThrownBy(() -> ProtocolErrors.check(false, "type=%s", "foo"))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("type=foo");
+  }
+
+  @Test
+  public void should_not_allocate_when_check_passes() {
+    ThreadMXBean threadBean = allocationTrackingBean();
+    long threadId = Thread.currentThread().getId();
+
+    // Use values outside of the Integer cache, so that boxing would allocate
+    int iterations = 100_000;
+    long before = threadBean.getThreadAllocatedBytes(threadId);
+    for (int i = 1000; i < 1000 + iterations; i++) {
+      ProtocolErrors.check(i > 0, "Invalid %d", i);
+      ProtocolErrors.check(i > 0, "Invalid %d and %d", i, i + 1);
+      ProtocolErrors.check(i > 0, "Invalid %d, %d and %d", i, i + 1, i + 2);
+    }
+    long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+    // A boxed argument alone would be 16 bytes per call. Leave some leeway for the measurement.
+    assertThat(allocated).isLessThan(iterations);
+  }
+
+  private static ThreadMXBean allocationTrackingBean() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof ThreadMXBean);
+    ThreadMXBean threadBean = (ThreadMXBean) bean;
+    assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+    return threadBean;
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.datastax.oss.protocol.internal.binary.MockBinaryString;
+import com.datastax.oss.protocol.internal.binary.MockPrimitiveCodec;
+import com.datastax.oss.protocol.internal.request.Query;
+import com.datastax.oss.protocol.internal.response.Error;
+import com.datastax.oss.protocol.internal.response.Ready;
+import com.datastax.oss.protocol.internal.response.result.Void;
+import org.junit.Test;
+
+public class RawMessageTest extends FrameCodecTestBase {
+
+  private final FrameCodec<MockBinaryString> serverCodec =
+      FrameCodec.defaultServer(MockPrimitiveCodec.INSTANCE, Compressor.none());
+  private final FrameCodec<MockBinaryString> rawClientCodec =
+      new FrameCodec<>(
+          MockPrimitiveCodec.INSTANCE,
+          Compressor.none(),
+          registry ->
+              registry.addDecoder(
+                  new RawMessage.Codec(
+                      ProtocolConstants.Opcode.ERROR, ProtocolConstants.Version.V5, true)));
+
+  @Test
+  public void should_decode_body_as_raw_message() {
+    Error error = new Error(ProtocolConstants.ErrorCode.SERVER_ERROR, "boom");
+    MockBinaryString encoded =
+        serverCodec.encode(
+            Frame.forResponse(5, STREAM_ID, TRACING_ID, SOME_PAYLOAD, SOME_WARNINGS, error));
+    // Add another frame after it, to check that the raw codec stops at the end of the first one
+    encoded.append(
+        serverCodec.encode(Frame.forResponse(5, 3, null, Frame.NO_PAYLOAD, NO_WARNINGS, error)));
+
+    Frame frame = rawClientCodec.decode(encoded);
+
+    assertThat(frame.streamId).isEqualTo(STREAM_ID);
+    assertThat(frame.tracingId).isEqualTo(TRACING_ID);
+    assertThat(frame.customPayload).isEqualTo(SOME_PAYLOAD);
+    assertThat(frame.warnings).isEqualTo(SOME_WARNINGS);
+    assertThat(frame.message).isInstanceOf(RawMessage.class);
+    @SuppressWarnings("unchecked")
+    RawMessage<MockBinaryString> raw = (RawMessage<MockBinaryString>) frame.message;
+    assertThat(raw.opcode).isEqualTo(ProtocolConstants.Opcode.ERROR);
+    assertThat(raw.isResponse).isTrue();
+    assertThat(raw.bodyLength).isEqualTo(4 + 2 + "boom".length());
+    assertThat(raw.body).isEqualTo(new MockBinaryString().int_(0).string("boom"));
+
+    assertThat(rawClientCodec.decode(encoded).streamId).isEqualTo(3);
+    assertThat(encoded.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_replace_default_decoders_with_raw_codecs() {
+    FrameCodec<MockBinaryString> clientCodec =
+        new FrameCodec<>(
+            MockPrimitiveCodec.INSTANCE,
+            Compressor.none(),
+            new ProtocolV5ClientCodecs(),
+            registry ->
+                registry
+                    .replaceDecoder(
+                        new RawMessage.Codec(
+                            ProtocolConstants.Opcode.EVENT, ProtocolConstants.Version.V5, true))
+                    .replaceDecoder(
+                        new RawMessage.Codec(
+                            ProtocolConstants.Opcode.RESULT, ProtocolConstants.Version.V5, true)));
+
+    Frame result =
+        clientCodec.decode(
+            serverCodec.encode(
+                Frame.forResponse(
+                    5, STREAM_ID, null, Frame.NO_PAYLOAD, NO_WARNINGS, Void.INSTANCE)));
+    assertThat(result.message).isInstanceOf(RawMessage.class);
+    assertThat(((RawMessage<?>) result.message).opcode).isEqualTo(ProtocolConstants.Opcode.RESULT);
+
+    // Other opcodes still use the default decoders
+    Frame ready =
+        clientCodec.decode(
+            serverCodec.encode(
+                Frame.forResponse(5, STREAM_ID, null, Frame.NO_PAYLOAD, NO_WARNINGS, new Ready())));
+    assertThat(ready.message).isInstanceOf(Ready.class);
+  }
+
+  @Test
+  public void should_fail_to_add_decoder_that_already_exists() {
+    assertThatThrownBy(
+            () ->
+                new FrameCodec<>(
+                    MockPrimitiveCodec.INSTANCE,
+                    Compressor.none(),
+                    new ProtocolV5ClientCodecs(),
+                    registry ->
+                        registry.addDecoder(
+                            new RawMessage.Codec(
+                                ProtocolConstants.Opcode.EVENT,
+                                ProtocolConstants.Version.V5,
+                                true))))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("key already exists: 5, 12");
+  }
+
+  @Test
+  public void should_pre_serialize_frame_and_send_it_multiple_times() {
+    FrameCodec<MockBinaryString> clientCodec =
+        FrameCodec.defaultClient(MockPrimitiveCodec.INSTANCE, Compressor.none());
+    Frame original =
+        Frame.forRequest(5, STREAM_ID, false, SOME_PAYLOAD, new Query("SELECT * FROM t"));
+    Frame preSerialized = clientCodec.preSerialize(original);
+    assertThat(preSerialized.message).isInstanceOf(RawMessage.class);
+
+    MockBinaryString expected1 = clientCodec.encode(original);
+    MockBinaryString expected2 = clientCodec.encode(original.withStreamId(42));
+    assertThat(clientCodec.encode(preSerialized)).isEqualTo(expected1);
+    assertThat(clientCodec.encode(preSerialized.withStreamId(42))).isEqualTo(expected2);
+    assertThat(clientCodec.encodedBodySize(preSerialized))
+        .isEqualTo(clientCodec.encodedBodySize(original));
+  }
+
+  @Test
+  public void should_reject_pre_serialized_frame_of_other_version_in_version_specific_view() {
+    FrameCodec<MockBinaryString> clientCodec =
+        FrameCodec.defaultClient(MockPrimitiveCodec.INSTANCE, Compressor.none());
+    Frame preSerialized =
+        clientCodec.preSerialize(
+            Frame.forRequest(4, STREAM_ID, false, Frame.NO_PAYLOAD, new Query("SELECT 1")));
+
+    assertThatThrownBy(() -> clientCodec.forVersion(5).encode(preSerialized))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("This codec only supports protocol v5 (got v4)");
+    assertThat(clientCodec.forVersion(4).encode(preSerialized))
+        .isEqualTo(clientCodec.encode(preSerialized));
+  }
+
+  @Test
+  public void should_encode_raw_message_without_registered_codec() {
+    MockBinaryString body = new MockBinaryString().int_(0).string("boom");
+    RawMessage<MockBinaryString> raw =
+        new RawMessage<>(true, ProtocolConstants.Opcode.ERROR, body, body.size());
+    FrameCodec<MockBinaryString> emptyCodec =
+        new FrameCodec<>(MockPrimitiveCodec.INSTANCE, Compressor.none());
+
+    MockBinaryString encoded =
+        emptyCodec.encode(
+            Frame.forResponse(5, STREAM_ID, null, Frame.NO_PAYLOAD, NO_WARNINGS, raw));
+
+    // The body is not consumed, so the message can be sent again
+    assertThat(body.size()).isEqualTo(raw.bodyLength);
+    Frame frame =
+        FrameCodec.defaultClient(MockPrimitiveCodec.INSTANCE, Compressor.none()).decode(encoded);
+    assertThat(frame.streamId).isEqualTo(STREAM_ID);
+    assertThat(frame.message).isInstanceOf(Error.class);
+    assertThat(((Error) frame.message).message).isEqualTo("boom");
+  }
+}
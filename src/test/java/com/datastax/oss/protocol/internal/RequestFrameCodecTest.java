@@ -16,23 +16,28 @@
 package com.datastax.oss.protocol.internal;
 
 import static com.datastax.oss.protocol.internal.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import com.datastax.oss.protocol.internal.binary.MockBinaryString;
 import com.datastax.oss.protocol.internal.binary.MockCompressor;
 import com.datastax.oss.protocol.internal.binary.MockPrimitiveCodec;
 import com.datastax.oss.protocol.internal.request.Options;
+import com.datastax.oss.protocol.internal.request.Query;
 import com.datastax.oss.protocol.internal.request.Register;
 import com.datastax.oss.protocol.internal.request.Startup;
+import com.datastax.oss.protocol.internal.util.Flags;
 import com.datastax.oss.protocol.internal.util.collection.NullAllowingImmutableList;
 import com.tngtech.java.junit.dataprovider.DataProvider;
 import com.tngtech.java.junit.dataprovider.DataProviderRunner;
 import com.tngtech.java.junit.dataprovider.UseDataProvider;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -111,6 +116,236 @@ public class RequestFrameCodecTest extends FrameCodecTestBase {
     assertThat(frame.customPayload).isEqualTo(customPayload);
   }
 
+  @Test
+  @UseDataProvider("requestParameters")
+  public void should_decode_request_frame_header(
+      int protocolVersion,
+      Compressor<MockBinaryString> compressor,
+      boolean tracing,
+      Map<String, ByteBuffer> customPayload) {
+
+    FrameCodec<MockBinaryString> frameCodec = new FrameCodec<>(primitiveCodec, compressor);
+
+    MockBinaryString encoded =
+        mockRequestPayload(protocolVersion, compressor, tracing, customPayload, false);
+    MockBinaryString copy = encoded.copy();
+    FrameHeader header = frameCodec.decodeHeader(encoded, new FrameHeader());
+
+    assertThat(header.protocolVersion()).isEqualTo(protocolVersion);
+    assertThat(header.isResponse()).isFalse();
+    assertThat(header.isBeta()).isEqualTo(protocolVersion == ProtocolConstants.Version.BETA);
+    assertThat(header.isCompressed()).isEqualTo(compressor instanceof MockCompressor);
+    assertThat(Flags.contains(header.flags(), ProtocolConstants.FrameFlag.TRACING))
+        .isEqualTo(tracing);
+    assertThat(header.streamId()).isEqualTo(STREAM_ID);
+    assertThat(header.opcode()).isEqualTo(ProtocolConstants.Opcode.REGISTER);
+    assertThat(header.frameLength()).isEqualTo(encoded.size());
+    // Nothing was consumed
+    assertThat(encoded).isEqualTo(copy);
+  }
+
+  @Test
+  public void should_share_default_codec_tables() {
+    FrameCodec<MockBinaryString> client1 =
+        FrameCodec.defaultClient(primitiveCodec, Compressor.none());
+    FrameCodec<MockBinaryString> client2 =
+        FrameCodec.defaultClient(new MockPrimitiveCodec(), new MockCompressor());
+    FrameCodec<MockBinaryString> server =
+        FrameCodec.defaultServer(primitiveCodec, Compressor.none());
+
+    assertThat(client1.sharesCodecTablesWith(client2)).isTrue();
+    assertThat(client1.sharesCodecTablesWith(server)).isFalse();
+    assertThat(
+            new FrameCodec<>(primitiveCodec, Compressor.none(), new ProtocolV5ClientCodecs())
+                .sharesCodecTablesWith(client1))
+        .isFalse();
+  }
+
+  @Test
+  public void should_encode_and_decode_with_version_specific_view() {
+    FrameCodec<MockBinaryString> clientCodec =
+        FrameCodec.defaultClient(primitiveCodec, Compressor.none()).forVersion(5);
+    FrameCodec<MockBinaryString> serverCodec =
+        FrameCodec.defaultServer(primitiveCodec, Compressor.none()).forVersion(5);
+    assertThat(clientCodec.forVersion(5)).isSameAs(clientCodec);
+
+    Frame frame = Frame.forRequest(5, STREAM_ID, false, SOME_PAYLOAD, new Query("SELECT 1"));
+    MockBinaryString encoded = clientCodec.encode(frame);
+    assertThat(encoded)
+        .isEqualTo(FrameCodec.defaultClient(primitiveCodec, Compressor.none()).encode(frame));
+
+    Frame decoded = serverCodec.decode(encoded);
+    assertThat(decoded.streamId).isEqualTo(STREAM_ID);
+    assertThat(((Query) decoded.message).query).isEqualTo("SELECT 1");
+  }
+
+  @Test
+  public void should_reject_other_versions_in_version_specific_view() {
+    FrameCodec<MockBinaryString> clientCodec =
+        FrameCodec.defaultClient(primitiveCodec, Compressor.none()).forVersion(5);
+    assertThatThrownBy(
+            () ->
+                clientCodec.encode(
+                    Frame.forRequest(4, STREAM_ID, false, Frame.NO_PAYLOAD, new Query("SELECT 1"))))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("This codec only supports protocol v5 (got v4)");
+  }
+
+  @Test
+  public void should_encode_all_frames_into_single_buffer() {
+    FrameCodec<MockBinaryString> frameCodec =
+        FrameCodec.defaultClient(primitiveCodec, Compressor.none());
+    List<Frame> frames = new ArrayList<>();
+    MockBinaryString expected = new MockBinaryString();
+    for (int streamId = 1; streamId <= 3; streamId++) {
+      Frame frame =
+          Frame.forRequest(4, streamId, false, SOME_PAYLOAD, new Query("SELECT " + streamId));
+      frames.add(frame);
+      expected.append(frameCodec.encode(frame));
+    }
+
+    MockBinaryString actual = frameCodec.encodeAll(frames);
+
+    assertThat(actual).isEqualTo(expected);
+    verify(primitiveCodec).allocate(expected.size());
+  }
+
+  @Test
+  public void should_encode_all_frames_with_compression() {
+    MockCompressor compressor = new MockCompressor();
+    FrameCodec<MockBinaryString> frameCodec = FrameCodec.defaultClient(primitiveCodec, compressor);
+    FrameCodec<MockBinaryString> uncompressedCodec =
+        FrameCodec.defaultClient(primitiveCodec, Compressor.none());
+    List<Frame> frames = new ArrayList<>();
+    MockBinaryString expected = new MockBinaryString();
+    for (int streamId = 1; streamId <= 2; streamId++) {
+      Frame frame =
+          Frame.forRequest(4, streamId, false, Frame.NO_PAYLOAD, new Query("SELECT " + streamId));
+      frames.add(frame);
+      MockBinaryString uncompressedBody = uncompressedCodec.encode(frame);
+      primitiveCodec.readRetainedSlice(uncompressedBody, FrameCodec.V3_ENCODED_HEADER_SIZE);
+      compressor.prime(
+          uncompressedBody, new MockBinaryString().int_(COMPRESSED_COUNT.getAndIncrement()));
+    }
+    for (Frame frame : frames) {
+      expected.append(frameCodec.encode(frame));
+    }
+
+    assertThat(frameCodec.encodeAll(frames)).isEqualTo(expected);
+  }
+
+  @Test
+  public void should_release_encoded_frames_if_encode_all_fails() {
+    MockCompressor compressor = new MockCompressor();
+    FrameCodec<MockBinaryString> frameCodec = FrameCodec.defaultClient(primitiveCodec, compressor);
+    FrameCodec<MockBinaryString> uncompressedCodec =
+        FrameCodec.defaultClient(primitiveCodec, Compressor.none());
+    Frame frame1 = Frame.forRequest(4, 1, false, Frame.NO_PAYLOAD, new Query("SELECT 1"));
+    MockBinaryString uncompressedBody = uncompressedCodec.encode(frame1);
+    primitiveCodec.readRetainedSlice(uncompressedBody, FrameCodec.V3_ENCODED_HEADER_SIZE);
+    compressor.prime(
+        uncompressedBody, new MockBinaryString().int_(COMPRESSED_COUNT.getAndIncrement()));
+    // Not primed: compressing it fails
+    Frame frame2 = Frame.forRequest(4, 2, false, Frame.NO_PAYLOAD, new Query("SELECT 2"));
+
+    assertThatThrownBy(() -> frameCodec.encodeAll(Arrays.asList(frame1, frame2)))
+        .isInstanceOf(IllegalStateException.class);
+
+    // The uncompressed body of each frame, and the result that already contains frame1
+    verify(primitiveCodec, times(3)).release(any(MockBinaryString.class));
+  }
+
+  @Test
+  public void should_decode_all_frames() {
+    FrameCodec<MockBinaryString> clientCodec =
+        FrameCodec.defaultClient(primitiveCodec, Compressor.none());
+    FrameCodec<MockBinaryString> serverCodec =
+        FrameCodec.defaultServer(primitiveCodec, Compressor.none());
+    MockBinaryString payload = new MockBinaryString();
+    for (int streamId = 1; streamId <= 3; streamId++) {
+      payload.append(
+          clientCodec.encode(
+              Frame.forRequest(5, streamId, false, Frame.NO_PAYLOAD, new Query("q" + streamId))));
+    }
+    payload.append(
+        clientCodec.encode(Frame.forRequest(5, 4, false, Frame.NO_PAYLOAD, Options.INSTANCE)));
+
+    List<Frame> frames = new ArrayList<>();
+    serverCodec.decodeAll(payload, frames::add);
+
+    assertThat(frames).hasSize(4);
+    for (int i = 0; i < 3; i++) {
+      assertThat(frames.get(i).streamId).isEqualTo(i + 1);
+      assertThat(((Query) frames.get(i).message).query).isEqualTo("q" + (i + 1));
+    }
+    assertThat(frames.get(3).message).isEqualTo(Options.INSTANCE);
+    assertThat(payload.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_not_decode_any_frame_if_payload_is_truncated() {
+    FrameCodec<MockBinaryString> clientCodec =
+        FrameCodec.defaultClient(primitiveCodec, Compressor.none());
+    FrameCodec<MockBinaryString> serverCodec =
+        FrameCodec.defaultServer(primitiveCodec, Compressor.none());
+    MockBinaryString payload =
+        clientCodec.encode(Frame.forRequest(5, 1, false, Frame.NO_PAYLOAD, new Query("q")));
+    // A header that announces a longer body than what follows:
+    payload.byte_(5).byte_(0).unsignedShort(2).byte_(ProtocolConstants.Opcode.QUERY).int_(100);
+
+    List<Frame> frames = new ArrayList<>();
+    assertThatThrownBy(() -> serverCodec.decodeAll(payload, frames::add))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("Invalid body size 100");
+    assertThat(frames).isEmpty();
+  }
+
+  @Test
+  public void should_relay_frame_with_new_stream_id() {
+    FrameCodec<MockBinaryString> clientCodec =
+        FrameCodec.defaultClient(primitiveCodec, Compressor.none());
+    FrameCodec<MockBinaryString> serverCodec =
+        FrameCodec.defaultServer(primitiveCodec, Compressor.none());
+    MockBinaryString encoded =
+        clientCodec.encode(
+            Frame.forRequest(5, STREAM_ID, false, SOME_PAYLOAD, new Query("SELECT * FROM t")));
+    int length = encoded.size();
+
+    MockBinaryString relayed = serverCodec.relay(encoded, 42);
+
+    assertThat(encoded.size()).isEqualTo(0);
+    assertThat(relayed.size()).isEqualTo(length);
+    Frame frame = serverCodec.decode(relayed);
+    assertThat(frame.streamId).isEqualTo(42);
+    assertThat(frame.customPayload).isEqualTo(SOME_PAYLOAD);
+    assertThat(((Query) frame.message).query).isEqualTo("SELECT * FROM t");
+  }
+
+  @Test
+  public void should_relay_all_frames_of_segment_payload() {
+    FrameCodec<MockBinaryString> clientCodec =
+        FrameCodec.defaultClient(primitiveCodec, Compressor.none());
+    FrameCodec<MockBinaryString> serverCodec =
+        FrameCodec.defaultServer(primitiveCodec, Compressor.none());
+    MockBinaryString payload = new MockBinaryString();
+    for (int streamId = 1; streamId <= 3; streamId++) {
+      payload.append(
+          clientCodec.encode(
+              Frame.forRequest(5, streamId, false, Frame.NO_PAYLOAD, new Query("q" + streamId))));
+    }
+    int length = payload.size();
+
+    MockBinaryString relayed = serverCodec.relayAll(payload, streamId -> streamId + 100);
+
+    assertThat(relayed.size()).isEqualTo(length);
+    for (int streamId = 1; streamId <= 3; streamId++) {
+      Frame frame = serverCodec.decode(relayed);
+      assertThat(frame.streamId).isEqualTo(streamId + 100);
+      assertThat(((Query) frame.message).query).isEqualTo("q" + streamId);
+    }
+    assertThat(relayed.size()).isEqualTo(0);
+  }
+
   @Test
   public void should_not_compress_startup_message() {
     should_not_compress_message(new Startup());
@@ -16,6 +16,7 @@
 package com.datastax.oss.protocol.internal;
 
 import static com.datastax.oss.protocol.internal.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 import com.datastax.oss.protocol.internal.binary.MockBinaryString;
 import com.datastax.oss.protocol.internal.binary.MockCompressor;
@@ -33,6 +34,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 @RunWith(DataProviderRunner.class)
@@ -112,6 +114,196 @@ public class ResponseFrameCodecTest extends FrameCodecTestBase {
     assertThat(frame.message).isInstanceOf(Ready.class);
   }
 
+  @Test
+  @UseDataProvider("responseParameters")
+  public void should_decode_retained_response_frame(
+      int protocolVersion,
+      int streamId,
+      Compressor<MockBinaryString> compressor,
+      boolean tracing,
+      Map<String, ByteBuffer> customPayload,
+      List<String> warnings) {
+
+    FrameCodec<MockBinaryString> frameCodec =
+        new FrameCodec<>(
+            primitiveCodec,
+            compressor,
+            registry -> registry.addDecoder(new MockReadyCodec(protocolVersion)));
+
+    MockBinaryString encoded =
+        mockResponsePayload(
+            protocolVersion, streamId, compressor, tracing, customPayload, warnings, false);
+    Frame frame = frameCodec.decodeRetained(encoded);
+
+    assertThat(frame.isRetained()).isTrue();
+    assertThat(frame.protocolVersion).isEqualTo(protocolVersion);
+    assertThat(frame.streamId).isEqualTo(streamId);
+    assertThat(frame.tracingId).isEqualTo(tracing ? TRACING_ID : null);
+    assertThat(frame.customPayload).isEqualTo(customPayload);
+    assertThat(frame.warnings).isEqualTo(warnings);
+    assertThat(frame.message).isInstanceOf(Ready.class);
+    assertThat(encoded.size()).isEqualTo(0);
+
+    frame.release();
+    assertThat(frame.isRetained()).isFalse();
+  }
+
+  @Test
+  public void should_read_byte_views_and_release_once_in_retained_mode() {
+    int protocolVersion = ProtocolConstants.Version.V4;
+    FrameCodec<MockBinaryString> frameCodec =
+        new FrameCodec<>(
+            primitiveCodec,
+            Compressor.none(),
+            registry -> registry.addDecoder(new MockReadyCodec(protocolVersion)));
+    MockBinaryString encoded =
+        mockResponsePayload(
+            protocolVersion, 1, Compressor.none(), false, SOME_PAYLOAD, NO_WARNINGS, false);
+
+    Frame frame = frameCodec.decodeRetained(encoded);
+    assertThat(frame.customPayload).isEqualTo(SOME_PAYLOAD);
+    Mockito.verify(primitiveCodec, Mockito.times(2)).readBytesView(Mockito.any());
+    Mockito.verify(primitiveCodec, Mockito.never()).release(Mockito.any());
+
+    frame.release();
+    frame.release();
+    Mockito.verify(primitiveCodec).release(Mockito.any());
+  }
+
+  @Test
+  public void should_release_each_buffer_once_if_tracker_listener_fails() {
+    int protocolVersion = ProtocolConstants.Version.V4;
+    MockCompressor compressor = new MockCompressor();
+    FrameCodec<MockBinaryString> frameCodec =
+        new FrameCodec<>(
+            primitiveCodec,
+            compressor,
+            registry -> registry.addDecoder(new MockReadyCodec(protocolVersion)));
+    MockBinaryString encoded =
+        mockResponsePayload(
+            protocolVersion, 1, compressor, false, SOME_PAYLOAD, NO_WARNINGS, false);
+    RetainedMemoryTracker tracker =
+        new RetainedMemoryTracker(
+            1,
+            0,
+            new RetainedMemoryTracker.Listener() {
+              @Override
+              public void onPause(RetainedMemoryTracker tracker) {
+                throw new IllegalStateException("mock listener failure");
+              }
+
+              @Override
+              public void onResume(RetainedMemoryTracker tracker) {}
+            });
+
+    assertThatThrownBy(() -> frameCodec.decodeRetained(encoded, tracker))
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessage("mock listener failure");
+
+    // The frame slice and the decompressed body
+    ArgumentCaptor<MockBinaryString> released = ArgumentCaptor.forClass(MockBinaryString.class);
+    Mockito.verify(primitiveCodec, Mockito.times(2)).release(released.capture());
+    assertThat(released.getAllValues().get(0)).isNotSameAs(released.getAllValues().get(1));
+    assertThat(tracker.retainedBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_release_decompressed_body_if_message_fails_to_decode_in_retained_mode() {
+    int protocolVersion = ProtocolConstants.Version.V4;
+    MockCompressor compressor = new MockCompressor();
+    FrameCodec<MockBinaryString> frameCodec =
+        new FrameCodec<>(
+            primitiveCodec,
+            compressor,
+            registry ->
+                registry.addDecoder(
+                    new MockReadyCodec(protocolVersion) {
+                      @Override
+                      public <B> Message decode(B source, PrimitiveCodec<B> decoder) {
+                        throw new IllegalArgumentException("mock decoding failure");
+                      }
+                    }));
+    MockBinaryString encoded =
+        mockResponsePayload(
+            protocolVersion, 1, compressor, false, SOME_PAYLOAD, NO_WARNINGS, false);
+
+    assertThatThrownBy(() -> frameCodec.decodeRetained(encoded))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("mock decoding failure");
+
+    // The frame slice and the decompressed body
+    ArgumentCaptor<MockBinaryString> released = ArgumentCaptor.forClass(MockBinaryString.class);
+    Mockito.verify(primitiveCodec, Mockito.times(2)).release(released.capture());
+    assertThat(released.getAllValues().get(0)).isNotSameAs(released.getAllValues().get(1));
+  }
+
+  @Test
+  public void should_not_retain_regular_frame() {
+    int protocolVersion = ProtocolConstants.Version.V4;
+    FrameCodec<MockBinaryString> frameCodec =
+        new FrameCodec<>(
+            primitiveCodec,
+            Compressor.none(),
+            registry -> registry.addDecoder(new MockReadyCodec(protocolVersion)));
+    MockBinaryString encoded =
+        mockResponsePayload(
+            protocolVersion, 1, Compressor.none(), false, SOME_PAYLOAD, NO_WARNINGS, false);
+
+    Frame frame = frameCodec.decode(encoded);
+    assertThat(frame.isRetained()).isFalse();
+    frame.release();
+    Mockito.verify(primitiveCodec, Mockito.never()).readBytesView(Mockito.any());
+    Mockito.verify(primitiveCodec, Mockito.never()).release(Mockito.any());
+  }
+
+  @Test
+  public void should_reject_oversized_frame_before_decompressing_if_length_is_known() {
+    int protocolVersion = ProtocolConstants.Version.V4;
+    MockCompressor compressor = Mockito.spy(new MockCompressor());
+    int bodyLength = PrimitiveSizes.sizeOfString(MockReadyCodec.MOCK_ENCODED);
+    FrameCodec<MockBinaryString> frameCodec =
+        new FrameCodec<>(
+                primitiveCodec,
+                compressor,
+                registry -> registry.addDecoder(new MockReadyCodec(protocolVersion)))
+            .withMaxDecompressedBodyLength(bodyLength - 1);
+    MockBinaryString encoded =
+        mockResponsePayload(
+            protocolVersion, 1, compressor, false, Frame.NO_PAYLOAD, NO_WARNINGS, false);
+
+    assertThatThrownBy(() -> frameCodec.decode(encoded))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining(
+            String.format(
+                "exceeds the maximum length (%d bytes, max %d)", bodyLength, bodyLength - 1));
+    Mockito.verify(compressor).peekUncompressedLength(Mockito.any());
+    Mockito.verify(compressor, Mockito.never()).decompress(Mockito.any());
+  }
+
+  @Test
+  public void should_reject_oversized_frame_after_decompressing_if_length_is_unknown() {
+    int protocolVersion = ProtocolConstants.Version.V4;
+    MockCompressor compressor = Mockito.spy(new MockCompressor());
+    // Simulate a format that doesn't store the uncompressed length
+    Mockito.doReturn(-1).when(compressor).peekUncompressedLength(Mockito.any());
+    FrameCodec<MockBinaryString> frameCodec =
+        new FrameCodec<>(
+                primitiveCodec,
+                compressor,
+                registry -> registry.addDecoder(new MockReadyCodec(protocolVersion)))
+            .withMaxDecompressedBodyLength(1);
+    assertThat(frameCodec.maxDecompressedBodyLength()).isEqualTo(1);
+    assertThat(frameCodec.forVersion(protocolVersion).maxDecompressedBodyLength()).isEqualTo(1);
+    MockBinaryString encoded =
+        mockResponsePayload(
+            protocolVersion, 1, compressor, false, Frame.NO_PAYLOAD, NO_WARNINGS, false);
+
+    assertThatThrownBy(() -> frameCodec.decode(encoded))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("exceeds the maximum length");
+    Mockito.verify(primitiveCodec).release(Mockito.any());
+  }
+
   @Test
   public void should_decode_single_frame_from_larger_buffer() {
     int protocolVersion = ProtocolConstants.Version.V5;
@@ -0,0 +1,210 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.datastax.oss.protocol.internal.binary.MockBinaryString;
+import com.datastax.oss.protocol.internal.binary.MockPrimitiveCodec;
+import com.datastax.oss.protocol.internal.request.Query;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RetainedMemoryTrackerTest {
+
+  private List<String> events;
+  private RetainedMemoryTracker global;
+  private RetainedMemoryTracker connection;
+
+  @Before
+  public void setup() {
+    events = new ArrayList<>();
+    global = new RetainedMemoryTracker(1000, 500, new RecordingListener("global"));
+    connection = global.newChild(100, 50, new RecordingListener("connection"));
+  }
+
+  @Test
+  public void should_pause_at_high_watermark_and_resume_at_low_watermark() {
+    connection.acquire(60);
+    assertThat(connection.isPaused()).isFalse();
+
+    connection.acquire(40);
+    assertThat(connection.isPaused()).isTrue();
+    assertThat(events).containsExactly("pause connection");
+
+    connection.release(30);
+    assertThat(connection.isPaused()).isTrue();
+
+    connection.release(20);
+    assertThat(connection.isPaused()).isFalse();
+    assertThat(events).containsExactly("pause connection", "resume connection");
+    assertThat(connection.retainedBytes()).isEqualTo(50);
+  }
+
+  @Test
+  public void should_propagate_to_parent() {
+    RetainedMemoryTracker other = global.newChild(2000, 50, new RecordingListener("other"));
+    other.acquire(1000);
+
+    assertThat(global.retainedBytes()).isEqualTo(1000);
+    // Paused because of the global budget, although their own budgets are not exhausted
+    assertThat(connection.isPaused()).isTrue();
+    assertThat(other.isPaused()).isTrue();
+    assertThat(events).containsExactly("pause global", "pause connection", "pause other");
+
+    other.release(600);
+    assertThat(connection.isPaused()).isFalse();
+    assertThat(events)
+        .containsExactly(
+            "pause global",
+            "pause connection",
+            "pause other",
+            "resume global",
+            "resume connection",
+            "resume other");
+  }
+
+  @Test
+  public void should_only_notify_child_when_its_effective_state_changes() {
+    connection.acquire(100);
+    assertThat(events).containsExactly("pause connection");
+
+    // Already paused because of its own budget
+    connection.acquire(900);
+    assertThat(events).containsExactly("pause connection", "pause global");
+
+    // Still paused because of its own budget
+    connection.release(600);
+    assertThat(connection.isPaused()).isTrue();
+    assertThat(events).containsExactly("pause connection", "pause global", "resume global");
+
+    connection.release(350);
+    assertThat(connection.isPaused()).isFalse();
+    assertThat(events)
+        .containsExactly("pause connection", "pause global", "resume global", "resume connection");
+  }
+
+  @Test
+  public void should_stop_notifying_closed_child() {
+    connection.close();
+    RetainedMemoryTracker other = global.newChild(2000, 50, new RecordingListener("other"));
+    other.acquire(1000);
+    assertThat(events).containsExactly("pause global", "pause other");
+
+    // Bytes that were acquired before closing can still be released
+    other.release(1000);
+    assertThat(global.retainedBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_alternate_notifications_under_concurrent_updates() throws Exception {
+    List<String> concurrentEvents = Collections.synchronizedList(new ArrayList<>());
+    RetainedMemoryTracker tracker =
+        new RetainedMemoryTracker(
+            100,
+            50,
+            new RetainedMemoryTracker.Listener() {
+              @Override
+              public void onPause(RetainedMemoryTracker tracker) {
+                concurrentEvents.add("pause");
+              }
+
+              @Override
+              public void onResume(RetainedMemoryTracker tracker) {
+                concurrentEvents.add("resume");
+              }
+            });
+    int threadCount = 4;
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < threadCount; i++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (int j = 0; j < 10_000; j++) {
+                    tracker.acquire(40);
+                    tracker.release(40);
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(tracker.retainedBytes()).isEqualTo(0);
+    assertThat(tracker.isPaused()).isFalse();
+    for (int i = 0; i < concurrentEvents.size(); i++) {
+      assertThat(concurrentEvents.get(i)).isEqualTo(i % 2 == 0 ? "pause" : "resume");
+    }
+  }
+
+  @Test
+  public void should_account_decoded_frames_until_released() {
+    FrameCodec<MockBinaryString> clientCodec =
+        FrameCodec.defaultClient(MockPrimitiveCodec.INSTANCE, Compressor.none());
+    FrameCodec<MockBinaryString> serverCodec =
+        FrameCodec.defaultServer(MockPrimitiveCodec.INSTANCE, Compressor.none());
+    Frame request = Frame.forRequest(5, 1, false, Collections.emptyMap(), new Query("SELECT"));
+
+    Frame frame1 = serverCodec.decode(clientCodec.encode(request), connection);
+    Frame frame2 = serverCodec.decodeRetained(clientCodec.encode(request), connection);
+    assertThat(frame1.isRetained()).isTrue();
+    assertThat(connection.retainedBytes()).isEqualTo(frame1.size + frame2.size);
+    assertThat(global.retainedBytes()).isEqualTo(frame1.size + frame2.size);
+
+    frame1.release();
+    frame1.release();
+    frame2.release();
+    assertThat(connection.retainedBytes()).isEqualTo(0);
+    assertThat(global.retainedBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_fail_if_watermarks_inverted() {
+    assertThatThrownBy(() -> new RetainedMemoryTracker(100, 100, null))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("lower than highWatermark");
+  }
+
+  private class RecordingListener implements RetainedMemoryTracker.Listener {
+    private final String name;
+
+    RecordingListener(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public void onPause(RetainedMemoryTracker tracker) {
+      events.add("pause " + name);
+    }
+
+    @Override
+    public void onResume(RetainedMemoryTracker tracker) {
+      events.add("resume " + name);
+    }
+  }
+}
@@ -16,14 +16,20 @@
 package com.datastax.oss.protocol.internal;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import com.datastax.oss.protocol.internal.binary.MockBinaryString;
 import com.datastax.oss.protocol.internal.binary.MockPrimitiveCodec;
 import com.datastax.oss.protocol.internal.request.Query;
 import com.datastax.oss.protocol.internal.request.query.QueryOptionsBuilder;
+import com.datastax.oss.protocol.internal.util.Crc;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import org.junit.Test;
 
 public class SegmentBuilderTest {
@@ -142,6 +148,27 @@ public class SegmentBuilderTest {
     }
   }
 
+  @Test
+  public void should_pass_all_slices_of_large_frame_at_once() {
+    List<Integer> sliceCounts = new ArrayList<>();
+    TestSegmentBuilder builder =
+        new TestSegmentBuilder(100) {
+          @Override
+          protected void processSlices(
+              List<Segment<MockBinaryString>> slices, List<String> sliceStates) {
+            sliceCounts.add(slices.size());
+            super.processSlices(slices, sliceStates);
+          }
+        };
+
+    builder.addFrame(_1KB_FRAME, "abcdefghijk");
+
+    assertThat(sliceCounts).containsExactly(11);
+    assertThat(builder.segments).hasSize(11);
+    assertThat(builder.states)
+        .containsExactly("a", "b", "c", "d", "e", "f", "g", "h", "i", "j", "k");
+  }
+
   @Test
   public void should_mix_small_frames_and_large_frames() {
     TestSegmentBuilder builder = new TestSegmentBuilder(100);
@@ -182,6 +209,279 @@ public class SegmentBuilderTest {
     assertThat(builder.states.get(12)).isEqualTo("no");
   }
 
+  @Test
+  public void should_flush_when_policy_max_frames_reached() {
+    TestSegmentBuilder builder =
+        new TestSegmentBuilder(
+            1000, new SegmentFlushPolicy(Long.MAX_VALUE, TimeUnit.NANOSECONDS, 2, 1000, false));
+
+    builder.addFrame(_38B_FRAME, "a");
+    assertThat(builder.segments).isEmpty();
+    builder.addFrame(_38B_FRAME, "b");
+    assertThat(builder.states).containsExactly("ab");
+    builder.addFrame(_38B_FRAME, "c");
+    builder.flush();
+    assertThat(builder.states).containsExactly("ab", "c");
+    assertThat(builder.policyFlushes).containsExactly(SegmentFlushPolicy.Reason.MAX_FRAMES);
+  }
+
+  @Test
+  public void should_flush_when_policy_max_bytes_reached() {
+    TestSegmentBuilder builder =
+        new TestSegmentBuilder(
+            1000, new SegmentFlushPolicy(Long.MAX_VALUE, TimeUnit.NANOSECONDS, 100, 80, false));
+
+    builder.addFrame(_38B_FRAME, "a");
+    builder.addFrame(_38B_FRAME, "b");
+    assertThat(builder.segments).isEmpty();
+    builder.addFrame(_38B_FRAME, "c");
+    assertThat(builder.states).containsExactly("abc");
+    assertThat(builder.policyFlushes).containsExactly(SegmentFlushPolicy.Reason.MAX_BYTES);
+  }
+
+  @Test
+  public void should_flush_when_policy_max_delay_elapsed() {
+    TestSegmentBuilder builder =
+        new TestSegmentBuilder(
+            1000, new SegmentFlushPolicy(10, TimeUnit.NANOSECONDS, 100, 1000, false));
+
+    builder.addFrame(_38B_FRAME, "a");
+    assertThat(builder.scheduledFlushes).containsExactly(10L);
+    builder.now = 5;
+    builder.addFrame(_38B_FRAME, "b");
+    assertThat(builder.flushIfDue()).isFalse();
+    assertThat(builder.segments).isEmpty();
+
+    builder.now = 10;
+    assertThat(builder.flushIfDue()).isTrue();
+    assertThat(builder.states).containsExactly("ab");
+    assertThat(builder.policyFlushes).containsExactly(SegmentFlushPolicy.Reason.MAX_DELAY);
+
+    // Nothing left to flush
+    assertThat(builder.flushIfDue()).isFalse();
+
+    // A frame added after the deadline also triggers the flush
+    builder.addFrame(_38B_FRAME, "c");
+    assertThat(builder.scheduledFlushes).containsExactly(10L, 10L);
+    builder.now = 25;
+    builder.addFrame(_38B_FRAME, "d");
+    assertThat(builder.states).containsExactly("ab", "cd");
+  }
+
+  @Test
+  public void should_flush_immediately_under_low_load_and_coalesce_under_high_load() {
+    TestSegmentBuilder builder =
+        new TestSegmentBuilder(
+            1000, new SegmentFlushPolicy(100, TimeUnit.NANOSECONDS, 100, 1000, true));
+
+    // No history yet: assume low load
+    builder.addFrame(_38B_FRAME, "a");
+    assertThat(builder.states).containsExactly("a");
+
+    // Frames arrive in quick succession: coalesce
+    builder.now = 1;
+    builder.addFrame(_38B_FRAME, "b");
+    builder.now = 2;
+    builder.addFrame(_38B_FRAME, "c");
+    assertThat(builder.states).containsExactly("a");
+    builder.now = 102;
+    assertThat(builder.flushIfDue()).isTrue();
+    assertThat(builder.states).containsExactly("a", "bc");
+
+    // Frames become sparse: the average interval goes back above the max delay
+    for (int i = 0; i < 20; i++) {
+      builder.now += 1000;
+      builder.addFrame(_38B_FRAME, "x");
+    }
+    assertThat(builder.policyFlushes).endsWith(SegmentFlushPolicy.Reason.LOW_LOAD);
+    assertThat(builder.states).endsWith("x");
+  }
+
+  @Test
+  public void should_interleave_small_frames_between_slices_of_large_frame() {
+    TestSegmentBuilder builder =
+        new TestSegmentBuilder(
+            100, SegmentFlushPolicy.NONE, SegmentBuilder.LargeFrameScheduling.INTERLEAVED);
+
+    builder.addFrame(_1KB_FRAME, "ABCDEFGHIJK");
+    builder.addFrame(_38B_FRAME, "a");
+    builder.addFrame(_51B_FRAME, "b");
+    // Slices are queued until the next flush
+    assertThat(builder.segments).isEmpty();
+    assertThat(builder.hasPendingSlices()).isTrue();
+
+    builder.flush(2);
+    assertThat(builder.states).containsExactly("ab", "A", "B");
+    assertThat(builder.segments.get(0).isSelfContained).isTrue();
+    assertThat(builder.segments.get(1).isSelfContained).isFalse();
+
+    builder.addFrame(_38B_FRAME, "c");
+    builder.flush(3);
+    assertThat(builder.states).containsExactly("ab", "A", "B", "c", "C", "D", "E");
+
+    // Nothing small pending, only slices
+    builder.flush(1);
+    assertThat(builder.states).endsWith("E", "F");
+
+    builder.flush();
+    assertThat(builder.states).endsWith("F", "G", "H", "I", "J", "K");
+    assertThat(builder.hasPendingSlices()).isFalse();
+    assertThat(builder.segments).hasSize(13);
+  }
+
+  @Test
+  public void should_process_queued_large_frames_in_order() {
+    TestSegmentBuilder builder =
+        new TestSegmentBuilder(
+            256, SegmentFlushPolicy.NONE, SegmentBuilder.LargeFrameScheduling.INTERLEAVED);
+
+    builder.addFrame(_1KB_FRAME, "ABCD");
+    builder.addFrame(_1KB_FRAME, "EFGH");
+
+    builder.flush(3);
+    assertThat(builder.states).containsExactly("A", "B", "C");
+    builder.flush(3);
+    assertThat(builder.states).containsExactly("A", "B", "C", "D", "E", "F");
+    builder.flush();
+    assertThat(builder.states).containsExactly("A", "B", "C", "D", "E", "F", "G", "H");
+  }
+
+  @Test
+  public void should_release_queued_slices_when_discarded() {
+    MockPrimitiveCodec primitiveCodec = spy(MockPrimitiveCodec.INSTANCE);
+    TestSegmentBuilder builder =
+        new TestSegmentBuilder(
+            primitiveCodec,
+            256,
+            SegmentFlushPolicy.NONE,
+            SegmentBuilder.LargeFrameScheduling.INTERLEAVED);
+
+    builder.addFrame(_1KB_FRAME, "ABCD");
+    builder.addFrame(_1KB_FRAME, "EFGH");
+    builder.flush(3);
+    // The two frame buffers, once they have been sliced
+    verify(primitiveCodec, times(2)).release(any());
+
+    assertThat(builder.releasePending()).containsExactly("D", "E", "F", "G", "H");
+    verify(primitiveCodec, times(2 + 5)).release(any());
+    assertThat(builder.hasPendingSlices()).isFalse();
+    assertThat(builder.releasePending()).isEmpty();
+    assertThat(builder.states).containsExactly("A", "B", "C");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void should_fail_if_max_payload_length_above_protocol_limit() {
+    new TestSegmentBuilder(Segment.PROTOCOL_MAX_PAYLOAD_LENGTH + 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void should_fail_if_max_payload_length_not_positive() {
+    new TestSegmentBuilder(0);
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void should_use_protocol_max_payload_length_by_default() {
+    int previous = Segment.MAX_PAYLOAD_LENGTH;
+    // The deprecated global setting must not affect new builders
+    Segment.MAX_PAYLOAD_LENGTH = 100;
+    try {
+      TestSegmentBuilder builder = new TestSegmentBuilder();
+      builder.addFrame(_1KB_FRAME, "a");
+      builder.flush();
+      assertThat(builder.segments).hasSize(1);
+      assertThat(builder.segments.get(0).isSelfContained).isTrue();
+    } finally {
+      Segment.MAX_PAYLOAD_LENGTH = previous;
+    }
+  }
+
+  @Test
+  public void should_write_frames_after_reserved_header() throws CrcMismatchException {
+    SegmentCodec<MockBinaryString> segmentCodec =
+        new SegmentCodec<>(MockPrimitiveCodec.INSTANCE, Compressor.none(), 100);
+    TestSegmentBuilder builder =
+        new TestSegmentBuilder(100) {
+          @Override
+          protected MockBinaryString allocatePayload(int payloadLength) {
+            return segmentCodec.allocateWithReservedHeader(payloadLength, true);
+          }
+        };
+    builder.addFrame(_38B_FRAME, "a");
+    builder.addFrame(_51B_FRAME, "b");
+    builder.flush();
+
+    assertThat(builder.segments).hasSize(1);
+    MockBinaryString buffer = builder.segments.get(0).payload;
+    SegmentCodec.Header header = segmentCodec.decodeHeader(buffer);
+    assertThat(header.payloadLength).isEqualTo(38 + 51);
+    assertThat(header.isSelfContained).isTrue();
+    assertThat(buffer.size()).isEqualTo(38 + 51);
+  }
+
+  @Test
+  public void should_compute_payload_crc_while_encoding() {
+    TestSegmentBuilder builder =
+        new TestSegmentBuilder(100) {
+          @Override
+          protected boolean computesPayloadCrc() {
+            return true;
+          }
+        };
+    builder.addFrame(_38B_FRAME, "a");
+    builder.addFrame(_51B_FRAME, "b");
+    builder.flush();
+
+    assertThat(builder.segments).hasSize(1);
+    Segment<MockBinaryString> segment = builder.segments.get(0);
+    assertThat(segment.hasPayloadCrc).isTrue();
+    assertThat(segment.payloadCrc)
+        .isEqualTo(Crc.computeCrc32(segment.payload, MockPrimitiveCodec.INSTANCE));
+    assertThat(segment.payload.size()).isEqualTo(38 + 51);
+  }
+
+  @Test
+  public void should_not_compute_payload_crc_by_default() {
+    TestSegmentBuilder builder = new TestSegmentBuilder(100);
+    builder.addFrame(_38B_FRAME, "a");
+    builder.flush();
+    assertThat(builder.segments.get(0).hasPayloadCrc).isFalse();
+  }
+
+  @Test
+  public void should_accept_pre_serialized_frames() {
+    FrameCodec<MockBinaryString> frameCodec =
+        FrameCodec.defaultClient(MockPrimitiveCodec.INSTANCE, Compressor.none());
+    Frame preSerialized = frameCodec.preSerialize(_38B_FRAME);
+
+    TestSegmentBuilder builder = new TestSegmentBuilder(100);
+    builder.addFrame(preSerialized, "a");
+    builder.addFrame(preSerialized.withStreamId(2), "b");
+    builder.flush();
+
+    assertThat(builder.segments).hasSize(1);
+    MockBinaryString payload = builder.segments.get(0).payload;
+    assertThat(payload.size()).isEqualTo(38 + 38);
+    MockBinaryString expected = frameCodec.encode(_38B_FRAME);
+    expected.append(frameCodec.encode(_38B_FRAME.withStreamId(2)));
+    assertThat(payload).isEqualTo(expected);
+  }
+
+  @Test
+  public void should_compute_body_size_once_per_frame() {
+    FrameCodec<MockBinaryString> frameCodec =
+        spy(FrameCodec.defaultClient(MockPrimitiveCodec.INSTANCE, Compressor.none()));
+    TestSegmentBuilder builder = new TestSegmentBuilder(frameCodec);
+    builder.addFrame(_38B_FRAME, "a");
+    builder.addFrame(_51B_FRAME, "b");
+    builder.flush();
+
+    assertThat(builder.segments).hasSize(1);
+    verify(frameCodec, times(2)).encodedBodySize(any(Frame.class));
+    verify(frameCodec).encodeInto(_38B_FRAME, 38 - 9, builder.segments.get(0).payload);
+    verify(frameCodec).encodeInto(_51B_FRAME, 51 - 9, builder.segments.get(0).payload);
+  }
+
   /**
    * Test implementation that simply stores segment in the order they were produced, and uses
    * strings to simulate the state.
@@ -191,11 +491,60 @@ public class SegmentBuilderTest {
     List<Segment<MockBinaryString>> segments = new ArrayList<>();
     List<String> states = new ArrayList<>();
 
+    List<SegmentFlushPolicy.Reason> policyFlushes = new ArrayList<>();
+    List<Long> scheduledFlushes = new ArrayList<>();
+    long now;
+
     TestSegmentBuilder(int maxPayloadLength) {
+      this(maxPayloadLength, SegmentFlushPolicy.NONE);
+    }
+
+    TestSegmentBuilder(int maxPayloadLength, SegmentFlushPolicy flushPolicy) {
+      this(maxPayloadLength, flushPolicy, LargeFrameScheduling.IMMEDIATE);
+    }
+
+    TestSegmentBuilder() {
+      this(FrameCodec.defaultClient(MockPrimitiveCodec.INSTANCE, Compressor.none()));
+    }
+
+    TestSegmentBuilder(FrameCodec<MockBinaryString> frameCodec) {
+      super(MockPrimitiveCodec.INSTANCE, frameCodec);
+    }
+
+    TestSegmentBuilder(
+        int maxPayloadLength,
+        SegmentFlushPolicy flushPolicy,
+        LargeFrameScheduling largeFrameScheduling) {
+      this(MockPrimitiveCodec.INSTANCE, maxPayloadLength, flushPolicy, largeFrameScheduling);
+    }
+
+    TestSegmentBuilder(
+        MockPrimitiveCodec primitiveCodec,
+        int maxPayloadLength,
+        SegmentFlushPolicy flushPolicy,
+        LargeFrameScheduling largeFrameScheduling) {
       super(
-          MockPrimitiveCodec.INSTANCE,
+          primitiveCodec,
           FrameCodec.defaultClient(MockPrimitiveCodec.INSTANCE, Compressor.none()),
-          maxPayloadLength);
+          maxPayloadLength,
+          flushPolicy,
+          largeFrameScheduling);
+    }
+
+    @Override
+    protected void scheduleFlush(long delayNanos) {
+      scheduledFlushes.add(delayNanos);
+    }
+
+    @Override
+    protected void onPolicyFlush(
+        SegmentFlushPolicy.Reason reason, int currentPayloadLength, int currentFrameCount) {
+      policyFlushes.add(reason);
+    }
+
+    @Override
+    protected long nanoTime() {
+      return now;
     }
 
     @Override
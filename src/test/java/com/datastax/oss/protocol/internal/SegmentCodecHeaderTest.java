@@ -84,7 +84,7 @@ public class SegmentCodecHeaderTest {
   @Test
   public void should_encode_compressed_header_when_aligned_uncompressed_length_overflows() {
     MockBinaryString encoded =
-        CODEC_WITH_COMPRESSION.encodeHeader(5, Segment.MAX_PAYLOAD_LENGTH, true);
+        CODEC_WITH_COMPRESSION.encodeHeader(5, Segment.PROTOCOL_MAX_PAYLOAD_LENGTH, true);
 
     // 5-bit padding, selfContained flag, 17-bit uncompressed length, 17-bit length
     int expectedByte4 = 0b00000_1_11;
@@ -16,17 +16,27 @@
 package com.datastax.oss.protocol.internal;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import com.datastax.oss.protocol.internal.binary.MockBinaryString;
 import com.datastax.oss.protocol.internal.binary.MockCompressor;
 import com.datastax.oss.protocol.internal.binary.MockPrimitiveCodec;
+import com.datastax.oss.protocol.internal.util.Crc;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -158,6 +168,21 @@ public class SegmentCodecTest {
     assertThat(segment.payload).isEqualTo(uncompressedPayload);
   }
 
+  @Test
+  public void should_fail_to_decode_if_decompressed_length_does_not_match_header() {
+    MockBinaryString compressedPayload = new MockBinaryString().byte_(0x01);
+    doReturn(new MockBinaryString().byte_(0x01).byte_(0x02).byte_(0x03))
+        .when(mockCompressor)
+        .decompressWithoutLength(any(), anyInt());
+
+    SegmentCodec.Header header = new SegmentCodec.Header(compressedPayload.size(), 2, true);
+    MockBinaryString bytes = compressedPayload.copy().byte_(11).byte_(43).byte_(-101).byte_(-70);
+
+    assertThatThrownBy(() -> codecWithCompression.decode(header, bytes))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("header declared 2 bytes, got 3");
+  }
+
   @Test
   public void should_decode_when_compression_was_skipped() throws CrcMismatchException {
     MockBinaryString payloadBytes = new MockBinaryString().byte_(0x01);
@@ -174,6 +199,106 @@ public class SegmentCodecTest {
     assertThat(segment.payload).isEqualTo(payloadBytes);
   }
 
+  @Test
+  public void should_encode_with_reserved_header() throws CrcMismatchException {
+    MockBinaryString payload = new MockBinaryString().byte_(0x01).byte_(0x02).byte_(0x03);
+
+    MockBinaryString buffer = codecWithoutCompression.allocateWithReservedHeader(3, true);
+    buffer.append(payload.copy());
+    List<Object> out = new ArrayList<>();
+    codecWithoutCompression.encodeWithReservedHeader(buffer, out);
+
+    // Same bytes as the regular encoding, but in a single buffer
+    List<Object> expected = new ArrayList<>();
+    codecWithoutCompression.encode(new Segment<>(payload.copy(), true), expected);
+    MockBinaryString expectedBuffer = new MockBinaryString();
+    for (Object o : expected) {
+      expectedBuffer.append((MockBinaryString) o);
+    }
+    assertThat(out).containsExactly(expectedBuffer);
+
+    SegmentCodec.Header header = codecWithoutCompression.decodeHeader(buffer);
+    Segment<MockBinaryString> segment = codecWithoutCompression.decode(header, buffer);
+    assertThat(segment.payload).isEqualTo(payload);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void should_not_reserve_header_with_compression() {
+    codecWithCompression.allocateWithReservedHeader(3, true);
+  }
+
+  @Test
+  public void should_reuse_precomputed_crc_without_compression() {
+    MockBinaryString payload = new MockBinaryString().byte_(0x01);
+    List<Object> out = new ArrayList<>();
+    codecWithoutCompression.encode(new Segment<>(payload, true, 0x12345678), out);
+
+    assertThat(out.get(2))
+        .isEqualTo(new MockBinaryString().byte_(0x78).byte_(0x56).byte_(0x34).byte_(0x12));
+  }
+
+  @Test
+  public void should_reuse_precomputed_crc_with_reserved_header() {
+    MockBinaryString buffer = codecWithoutCompression.allocateWithReservedHeader(1, true);
+    buffer.byte_(0x01);
+    List<Object> out = new ArrayList<>();
+    codecWithoutCompression.encodeWithReservedHeader(new Segment<>(buffer, true, 0x12345678), out);
+
+    assertThat(out).containsExactly(buffer);
+    assertThat(buffer.size()).isEqualTo(6 + 1 + 4);
+    buffer.markReaderIndex();
+    MockPrimitiveCodec.INSTANCE.readRetainedSlice(buffer, 7);
+    assertThat(buffer)
+        .isEqualTo(new MockBinaryString().byte_(0x78).byte_(0x56).byte_(0x34).byte_(0x12));
+  }
+
+  @Test
+  public void should_ignore_precomputed_crc_when_payload_compressed() {
+    MockBinaryString originalPayload =
+        new MockBinaryString().byte_(0x01).byte_(0x02).byte_(0x03).byte_(0x04);
+    MockBinaryString compressedPayload = new MockBinaryString().byte_(0x01);
+    mockCompressor.prime(originalPayload, compressedPayload);
+
+    List<Object> out = new ArrayList<>();
+    codecWithCompression.encode(new Segment<>(originalPayload.copy(), true, 0x12345678), out);
+
+    int expectedCrc = Crc.computeCrc32(compressedPayload, MockPrimitiveCodec.INSTANCE);
+    MockBinaryString expectedTrailer = new MockBinaryString();
+    for (int i = 0; i < 4; i++) {
+      expectedTrailer.byte_(expectedCrc >> (8 * i) & 0xFF);
+    }
+    assertThat(out.get(2)).isEqualTo(expectedTrailer);
+  }
+
+  @Test
+  public void should_use_custom_max_payload_length() {
+    SegmentCodec<MockBinaryString> codec =
+        new SegmentCodec<>(MockPrimitiveCodec.INSTANCE, Compressor.none(), 1024);
+    assertThat(codec.maxPayloadLength()).isEqualTo(1024);
+    assertThat(codecWithoutCompression.maxPayloadLength())
+        .isEqualTo(Segment.PROTOCOL_MAX_PAYLOAD_LENGTH);
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void should_ignore_global_max_payload_length() {
+    int previous = Segment.MAX_PAYLOAD_LENGTH;
+    Segment.MAX_PAYLOAD_LENGTH = 1024;
+    try {
+      SegmentCodec<MockBinaryString> codec =
+          new SegmentCodec<>(MockPrimitiveCodec.INSTANCE, Compressor.none());
+      assertThat(codec.maxPayloadLength()).isEqualTo(Segment.PROTOCOL_MAX_PAYLOAD_LENGTH);
+    } finally {
+      Segment.MAX_PAYLOAD_LENGTH = previous;
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void should_fail_if_max_payload_length_above_protocol_limit() {
+    new SegmentCodec<>(
+        MockPrimitiveCodec.INSTANCE, Compressor.none(), Segment.PROTOCOL_MAX_PAYLOAD_LENGTH + 1);
+  }
+
   @Test(expected = CrcMismatchException.class)
   public void should_throw_if_crc_does_not_match() throws CrcMismatchException {
     MockBinaryString payloadBytes = new MockBinaryString().byte_(0x01);
@@ -184,4 +309,124 @@ public class SegmentCodecTest {
 
     codecWithoutCompression.decode(header, bytes);
   }
+
+  @Test
+  public void should_encode_all_segments_in_order_when_tasks_complete_out_of_order() {
+    MockBinaryString payload1 = new MockBinaryString().byte_(0x01);
+    MockBinaryString payload2 = new MockBinaryString().byte_(0x02).byte_(0x03);
+    MockBinaryString payload3 = new MockBinaryString().byte_(0x04).byte_(0x05).byte_(0x06);
+    List<Segment<MockBinaryString>> segments =
+        Arrays.asList(
+            new Segment<>(payload1.copy(), false),
+            new Segment<>(payload2.copy(), false),
+            new Segment<>(payload3.copy(), false));
+
+    // Queue the tasks, and run them in reverse order
+    List<Runnable> tasks = new ArrayList<>();
+    CompletableFuture<List<Object>> future =
+        codecWithoutCompression.encodeAll(segments, tasks::add);
+    assertThat(tasks).hasSize(3);
+    assertThat(future).isNotDone();
+    for (int i = tasks.size() - 1; i >= 0; i--) {
+      tasks.get(i).run();
+    }
+
+    assertThat(future).isCompleted();
+    List<Object> out = future.join();
+    assertThat(out).hasSize(9);
+    assertThat(out.get(1)).isEqualTo(payload1);
+    assertThat(out.get(4)).isEqualTo(payload2);
+    assertThat(out.get(7)).isEqualTo(payload3);
+    for (int i = 0; i < 3; i++) {
+      List<Object> expected = new ArrayList<>();
+      codecWithoutCompression.encode(
+          new Segment<>(segments.get(i).payload.copy(), false), expected);
+      assertThat(out.subList(3 * i, 3 * i + 3)).isEqualTo(expected);
+    }
+  }
+
+  @Test
+  public void should_release_inputs_and_outputs_if_a_segment_fails_to_encode() {
+    MockPrimitiveCodec primitiveCodec = spy(MockPrimitiveCodec.INSTANCE);
+    SegmentCodec<MockBinaryString> codec = new SegmentCodec<>(primitiveCodec, mockCompressor);
+    MockBinaryString payload1 = new MockBinaryString().byte_(0x01).byte_(0x02);
+    MockBinaryString payload2 = new MockBinaryString().byte_(0x03).byte_(0x04);
+    // Only the first payload is primed, the compressor will fail on the second one
+    mockCompressor.prime(payload1, new MockBinaryString().byte_(0x05));
+    Segment<MockBinaryString> segment1 = new Segment<>(payload1.copy(), false);
+    Segment<MockBinaryString> segment2 = new Segment<>(payload2.copy(), false);
+
+    CompletableFuture<List<Object>> future =
+        codec.encodeAll(Arrays.asList(segment1, segment2), Runnable::run);
+
+    assertThat(future).isCompletedExceptionally();
+    // The failed segment's input
+    verify(primitiveCodec).release(segment2.payload);
+    // The successful segment's input (after compression) and its three outputs
+    verify(primitiveCodec).release(segment1.payload);
+    verify(primitiveCodec, times(5)).release(any());
+  }
+
+  @Test
+  public void should_release_inputs_and_outputs_if_executor_rejects_a_task() {
+    MockPrimitiveCodec primitiveCodec = spy(MockPrimitiveCodec.INSTANCE);
+    SegmentCodec<MockBinaryString> codec = new SegmentCodec<>(primitiveCodec, Compressor.none());
+    Segment<MockBinaryString> segment1 =
+        new Segment<>(new MockBinaryString().byte_(0x01).byte_(0x02), false);
+    Segment<MockBinaryString> segment2 =
+        new Segment<>(new MockBinaryString().byte_(0x03).byte_(0x04), false);
+    Segment<MockBinaryString> segment3 =
+        new Segment<>(new MockBinaryString().byte_(0x05).byte_(0x06), false);
+    AtomicInteger submitted = new AtomicInteger();
+    Executor executor =
+        task -> {
+          if (submitted.incrementAndGet() > 1) {
+            throw new RejectedExecutionException("mock rejection");
+          }
+          task.run();
+        };
+
+    CompletableFuture<List<Object>> future =
+        codec.encodeAll(Arrays.asList(segment1, segment2, segment3), executor);
+
+    assertThat(future).isCompletedExceptionally();
+    // The inputs that were never submitted
+    verify(primitiveCodec).release(segment2.payload);
+    verify(primitiveCodec).release(segment3.payload);
+    // The three outputs of the first segment (its input is reused as the payload buffer)
+    verify(primitiveCodec, times(5)).release(any());
+  }
+
+  @Test
+  public void should_fail_future_and_release_input_if_single_segment_fails_to_encode() {
+    MockPrimitiveCodec primitiveCodec = spy(MockPrimitiveCodec.INSTANCE);
+    SegmentCodec<MockBinaryString> codec = new SegmentCodec<>(primitiveCodec, mockCompressor);
+    // Not primed, the compressor will fail
+    Segment<MockBinaryString> segment =
+        new Segment<>(new MockBinaryString().byte_(0x01).byte_(0x02), false);
+
+    CompletableFuture<List<Object>> future =
+        codec.encodeAll(Collections.singletonList(segment), Runnable::run);
+
+    assertThat(future).isCompletedExceptionally();
+    verify(primitiveCodec).release(segment.payload);
+  }
+
+  @Test
+  public void should_encode_single_segment_synchronously() {
+    MockBinaryString payload = new MockBinaryString().byte_(0x01);
+    List<Segment<MockBinaryString>> segments =
+        Collections.singletonList(new Segment<>(payload.copy(), true));
+
+    CompletableFuture<List<Object>> future =
+        codecWithoutCompression.encodeAll(
+            segments,
+            task -> {
+              throw new AssertionError("Should not submit a task");
+            });
+
+    assertThat(future).isCompleted();
+    assertThat(future.join()).hasSize(3);
+    assertThat(future.join().get(1)).isEqualTo(payload);
+  }
 }
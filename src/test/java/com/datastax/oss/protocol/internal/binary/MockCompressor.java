@@ -78,6 +78,16 @@ public class MockCompressor implements Compressor<MockBinaryString> {
     return decompressed.copy();
   }
 
+  /**
+   * Like real formats that store the uncompressed length in their header, this answers without
+   * decompressing (here, by looking up the primed mapping).
+   */
+  @Override
+  public int peekUncompressedLength(MockBinaryString compressed) {
+    MockBinaryString decompressed = compressedToDecompressed.get(compressed);
+    return (decompressed == null) ? -1 : decompressed.size();
+  }
+
   @Override
   public MockBinaryString compressWithoutLength(MockBinaryString uncompressed) {
     // The two sets of methods are used in different contexts, for tests it doesn't matter if they
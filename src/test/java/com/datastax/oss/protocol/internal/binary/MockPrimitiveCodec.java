@@ -21,6 +21,7 @@ import com.datastax.oss.protocol.internal.PrimitiveCodec;
 import com.datastax.oss.protocol.internal.util.Bytes;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.zip.CRC32;
 
 public class MockPrimitiveCodec implements PrimitiveCodec<MockBinaryString> {
@@ -101,6 +102,21 @@ public class MockPrimitiveCodec implements PrimitiveCodec<MockBinaryString> {
     return Bytes.fromHexString(hexString);
   }
 
+  @Override
+  public int skipBytes(MockBinaryString source) {
+    String hexString = (String) pop(source, MockBinaryString.Element.Type.BYTES);
+    return (hexString.length() - 2) / 2;
+  }
+
+  @Override
+  public int readBytesInto(MockBinaryString source, ByteBuffer dest) {
+    String hexString = (String) pop(source, MockBinaryString.Element.Type.BYTES);
+    ByteBuffer value = Bytes.fromHexString(hexString);
+    int length = value.remaining();
+    dest.put(value);
+    return length;
+  }
+
   @Override
   public byte[] readShortBytes(MockBinaryString source) {
     String hexString = (String) pop(source, MockBinaryString.Element.Type.SHORT_BYTES);
@@ -127,15 +143,71 @@ public class MockPrimitiveCodec implements PrimitiveCodec<MockBinaryString> {
     source = source.copy(); // don't consume the input
     MockBinaryString.Element element;
     while ((element = source.pollFirst()) != null) {
-      if (element.type == MockBinaryString.Element.Type.BYTE) {
-        crc.update(((byte) element.value) & 0xFF);
-      } else {
+      crc.update(serialize(element));
+    }
+  }
+
+  @Override
+  public void updateCrc(MockBinaryString source, int offset, int length, CRC32 crc) {
+    ByteBuffer bytes = ByteBuffer.allocate(source.size());
+    source = source.copy(); // don't consume the input
+    MockBinaryString.Element element;
+    while ((element = source.pollFirst()) != null) {
+      bytes.put(serialize(element));
+    }
+    crc.update(bytes.array(), offset, length);
+  }
+
+  /**
+   * Converts an element to the bytes that a real implementation would write (big-endian), so that
+   * CRCs can be computed on any string, not only those that were assembled byte-by-byte.
+   */
+  private static byte[] serialize(MockBinaryString.Element element) {
+    ByteBuffer buffer = ByteBuffer.allocate(element.size());
+    byte[] bytes;
+    switch (element.type) {
+      case BYTE:
+        buffer.put((Byte) element.value);
+        break;
+      case INT:
+        buffer.putInt((Integer) element.value);
+        break;
+      case LONG:
+        buffer.putLong((Long) element.value);
+        break;
+      case UNSIGNED_SHORT:
+        buffer.putShort((short) (int) (Integer) element.value);
+        break;
+      case INETADDR:
+        bytes = ((InetAddress) element.value).getAddress();
+        buffer.put((byte) bytes.length).put(bytes);
+        break;
+      case STRING:
+        bytes = ((String) element.value).getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length).put(bytes);
+        break;
+      case LONG_STRING:
+        bytes = ((String) element.value).getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length).put(bytes);
+        break;
+      case BYTES:
+        bytes = Bytes.getArray(Bytes.fromHexString((String) element.value));
+        buffer.putInt(bytes.length).put(bytes);
+        break;
+      case SHORT_BYTES:
+        bytes = Bytes.getArray(Bytes.fromHexString((String) element.value));
+        buffer.putShort((short) bytes.length).put(bytes);
+        break;
+      default:
         throw new IllegalArgumentException(
-            "PrimitiveCodec.updateCrc() is only supported on MockBinaryStrings that were assembled byte-by-byte. "
-                + "Unexpected type "
-                + element.type);
-      }
+            "PrimitiveCodec.updateCrc() does not support element type " + element.type);
     }
+    return buffer.array();
+  }
+
+  @Override
+  public void writeRawBytes(MockBinaryString source, MockBinaryString dest) {
+    dest.append(source);
   }
 
   @Override
@@ -0,0 +1,182 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.response.result;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.datastax.oss.protocol.internal.Message;
+import com.datastax.oss.protocol.internal.MessageTestBase;
+import com.datastax.oss.protocol.internal.ProtocolConstants;
+import com.datastax.oss.protocol.internal.binary.MockBinaryString;
+import com.datastax.oss.protocol.internal.binary.MockPrimitiveCodec;
+import com.datastax.oss.protocol.internal.response.Result;
+import com.datastax.oss.protocol.internal.util.Bytes;
+import com.datastax.oss.protocol.internal.util.collection.NullAllowingImmutableList;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class DirectRowsTest extends MessageTestBase<Rows> {
+
+  private static final int PROTOCOL_VERSION = ProtocolConstants.Version.V4;
+
+  private List<ByteBuffer> freed;
+  private List<String> leaks;
+  private DirectRows.LeakDetector leakDetector;
+
+  public DirectRowsTest() {
+    super(Rows.class);
+  }
+
+  @Before
+  public void setup() {
+    freed = new ArrayList<>();
+    leaks = new ArrayList<>();
+    leakDetector = new DirectRows.LeakDetector(leaks::add);
+  }
+
+  @Override
+  protected Message.Codec newCodec(int protocolVersion) {
+    return new Result.Codec(
+        protocolVersion,
+        new Void.SubCodec(protocolVersion),
+        new DirectRows.SubCodec(
+            protocolVersion, ByteBuffer::allocateDirect, freed::add, leakDetector));
+  }
+
+  @Test
+  public void should_decode_into_direct_memory_with_typed_accessors() {
+    MockBinaryString encoded = encode(sampleRows(), PROTOCOL_VERSION);
+
+    DirectRows decoded = (DirectRows) decode(encoded.copy(), PROTOCOL_VERSION);
+
+    assertThat(decoded.rowCount()).isEqualTo(2);
+    assertThat(decoded.columnCount()).isEqualTo(3);
+    assertThat(decoded.getInt(0, 0)).isEqualTo(42);
+    assertThat(decoded.getLong(0, 1)).isEqualTo(1L << 40);
+    assertThat(decoded.getString(0, 2)).isEqualTo("hello");
+    assertThat(decoded.getInt(1, 0)).isEqualTo(-1);
+    assertThat(decoded.getBytes(1, 2)).isEqualTo(Bytes.fromHexString("0x"));
+    assertThat(decoded.getBytes(0, 2).isReadOnly()).isTrue();
+    assertThat(decoded.dataSize()).isEqualTo(2 * (4 + 8) + 5);
+    assertThatThrownBy(() -> decoded.getLong(0, 0))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("Expected 8 bytes at (0, 0), got 4");
+
+    // Re-encoding produces the same bytes
+    assertThat(encode(decoded, PROTOCOL_VERSION)).isEqualTo(encoded);
+    assertThat(encodedSize(decoded, PROTOCOL_VERSION))
+        .isEqualTo(encodedSize(sampleRows(), PROTOCOL_VERSION));
+    decoded.close();
+  }
+
+  @Test
+  public void should_allocate_exact_size_if_source_has_more_data() {
+    MockBinaryString encoded = encode(sampleRows(), PROTOCOL_VERSION);
+    // Simulate the next frame in the same buffer
+    encoded.bytes("0x" + String.join("", Collections.nCopies(1000, "ff")));
+
+    MockPrimitiveCodec primitiveCodec = Mockito.spy(MockPrimitiveCodec.INSTANCE);
+
+    DirectRows decoded = (DirectRows) newCodec(PROTOCOL_VERSION).decode(encoded, primitiveCodec);
+    assertThat(decoded.getString(0, 2)).isEqualTo("hello");
+    decoded.close();
+
+    assertThat(freed).hasSize(1);
+    assertThat(freed.get(0).capacity()).isEqualTo(2 * (4 + 8) + 5);
+    // Values are copied straight to the direct buffer, without intermediate heap buffers
+    Mockito.verify(primitiveCodec, Mockito.times(6)).readBytesInto(Mockito.any(), Mockito.any());
+    Mockito.verify(primitiveCodec, Mockito.never()).readBytes(Mockito.any());
+    Mockito.verify(primitiveCodec, Mockito.never()).readBytesView(Mockito.any());
+  }
+
+  @Test
+  public void should_free_buffer_when_reference_count_reaches_zero() {
+    DirectRows decoded =
+        (DirectRows) decode(encode(sampleRows(), PROTOCOL_VERSION), PROTOCOL_VERSION);
+
+    decoded.retain();
+    assertThat(decoded.refCount()).isEqualTo(2);
+    decoded.close();
+    assertThat(freed).isEmpty();
+    assertThat(decoded.getInt(0, 0)).isEqualTo(42);
+
+    decoded.close();
+    assertThat(freed).hasSize(1);
+    assertThat(freed.get(0).isDirect()).isTrue();
+    assertThat(decoded.refCount()).isEqualTo(0);
+    assertThatThrownBy(() -> decoded.getInt(0, 0)).isInstanceOf(IllegalStateException.class);
+    assertThatThrownBy(decoded::retain).isInstanceOf(IllegalStateException.class);
+    assertThatThrownBy(decoded::close).isInstanceOf(IllegalStateException.class);
+    assertThat(freed).hasSize(1);
+  }
+
+  @Test
+  public void should_detect_leaked_instances() throws InterruptedException {
+    decode(encode(sampleRows(), PROTOCOL_VERSION), PROTOCOL_VERSION).toString();
+    DirectRows closed =
+        (DirectRows) decode(encode(sampleRows(), PROTOCOL_VERSION), PROTOCOL_VERSION);
+    closed.close();
+
+    int leakCount = 0;
+    for (int i = 0; i < 50 && leakCount == 0; i++) {
+      System.gc();
+      Thread.sleep(10);
+      leakCount = leakDetector.reportLeaks();
+    }
+    assertThat(leakCount).isEqualTo(1);
+    assertThat(leaks).hasSize(1);
+    assertThat(leaks.get(0))
+        .startsWith("DirectRows (2 rows, 29 bytes) were garbage-collected without being closed")
+        .contains("should_detect_leaked_instances");
+    // The closed instance and the leaked one
+    assertThat(freed).hasSize(2);
+  }
+
+  private static Rows sampleRows() {
+    RawType intType = RawType.PRIMITIVES.get(ProtocolConstants.DataType.INT);
+    RawType bigintType = RawType.PRIMITIVES.get(ProtocolConstants.DataType.BIGINT);
+    RawType textType = RawType.PRIMITIVES.get(ProtocolConstants.DataType.VARCHAR);
+    RowsMetadata metadata =
+        new RowsMetadata(
+            NullAllowingImmutableList.of(
+                new ColumnSpec("ks", "t", "i", 0, intType),
+                new ColumnSpec("ks", "t", "l", 1, bigintType),
+                new ColumnSpec("ks", "t", "s", 2, textType)),
+            null,
+            null,
+            null);
+    Queue<List<ByteBuffer>> data = new ArrayDeque<>();
+    data.add(
+        NullAllowingImmutableList.of(
+            Bytes.fromHexString("0x0000002a"),
+            Bytes.fromHexString("0x0000010000000000"),
+            Bytes.fromHexString("0x68656c6c6f")));
+    data.add(
+        NullAllowingImmutableList.of(
+            Bytes.fromHexString("0xffffffff"),
+            Bytes.fromHexString("0x0000000000000000"),
+            Bytes.fromHexString("0x")));
+    return new DefaultRows(metadata, data);
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.response.result;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.datastax.oss.protocol.internal.Compressor;
+import com.datastax.oss.protocol.internal.Frame;
+import com.datastax.oss.protocol.internal.FrameCodec;
+import com.datastax.oss.protocol.internal.ProtocolConstants;
+import com.datastax.oss.protocol.internal.RawMessage;
+import com.datastax.oss.protocol.internal.binary.MockBinaryString;
+import com.datastax.oss.protocol.internal.binary.MockPrimitiveCodec;
+import com.datastax.oss.protocol.internal.response.Result;
+import com.datastax.oss.protocol.internal.util.Bytes;
+import com.datastax.oss.protocol.internal.util.collection.NullAllowingImmutableList;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import org.junit.Test;
+
+public class RowsWriterTest {
+
+  private static final int PROTOCOL_VERSION = ProtocolConstants.Version.V4;
+  private static final RawType BLOB_TYPE = RawType.PRIMITIVES.get(ProtocolConstants.DataType.BLOB);
+  private static final RowsMetadata METADATA =
+      new RowsMetadata(
+          NullAllowingImmutableList.of(
+              new ColumnSpec("ks1", "table1", "column1", 0, BLOB_TYPE),
+              new ColumnSpec("ks1", "table1", "column2", 1, BLOB_TYPE)),
+          null,
+          null,
+          null);
+
+  @Test
+  public void should_produce_same_encoding_as_default_rows() {
+    // Small chunks to exercise the concatenation
+    RowsWriter<MockBinaryString> writer =
+        new RowsWriter<>(MockPrimitiveCodec.INSTANCE, METADATA, PROTOCOL_VERSION, 1024, 5);
+    assertThat(writer.addRow(bytes("0x11"), bytes("0x12"))).isTrue();
+    assertThat(writer.addRow(bytes("0x21"), bytes("0x22"))).isTrue();
+    assertThat(writer.addRow(bytes("0x31"), bytes("0x32"))).isTrue();
+    RawMessage<MockBinaryString> page = writer.finish(bytes("0xcafe"));
+
+    Queue<List<ByteBuffer>> data = new ArrayDeque<>();
+    data.add(NullAllowingImmutableList.of(bytes("0x11"), bytes("0x12")));
+    data.add(NullAllowingImmutableList.of(bytes("0x21"), bytes("0x22")));
+    data.add(NullAllowingImmutableList.of(bytes("0x31"), bytes("0x32")));
+    DefaultRows expected =
+        new DefaultRows(new RowsMetadata(METADATA.columnSpecs, bytes("0xcafe"), null, null), data);
+    Result.Codec codec = new Result.Codec(PROTOCOL_VERSION);
+    MockBinaryString expectedBody = new MockBinaryString();
+    codec.encode(expectedBody, expected, MockPrimitiveCodec.INSTANCE);
+
+    assertThat(page.opcode).isEqualTo(ProtocolConstants.Opcode.RESULT);
+    assertThat(page.body).isEqualTo(expectedBody);
+    assertThat(page.bodyLength).isEqualTo(codec.encodedSize(expected));
+  }
+
+  @Test
+  public void should_stop_accepting_rows_when_page_is_full() {
+    // Each row is 2 x (4 + 1) bytes
+    RowsWriter<MockBinaryString> writer =
+        new RowsWriter<>(MockPrimitiveCodec.INSTANCE, METADATA, PROTOCOL_VERSION, 25);
+    assertThat(writer.addRow(bytes("0x11"), bytes("0x12"))).isTrue();
+    assertThat(writer.addRow(bytes("0x21"), bytes("0x22"))).isTrue();
+    assertThat(writer.addRow(bytes("0x31"), bytes("0x32"))).isFalse();
+    assertThat(writer.rowCount()).isEqualTo(2);
+    assertThat(writer.rowBytes()).isEqualTo(20);
+
+    Rows decoded = decode(writer.finish(null));
+    assertThat(decoded.getMetadata().pagingState).isNull();
+    assertThat(decoded.getData()).hasSize(2);
+  }
+
+  @Test
+  public void should_always_accept_first_row() {
+    RowsWriter<MockBinaryString> writer =
+        new RowsWriter<>(MockPrimitiveCodec.INSTANCE, METADATA, PROTOCOL_VERSION, 1);
+    assertThat(writer.addRow(bytes("0x11"), bytes("0x12"))).isTrue();
+    assertThat(writer.addRow(bytes("0x21"), bytes("0x22"))).isFalse();
+  }
+
+  @Test
+  public void should_encode_empty_page() {
+    RowsWriter<MockBinaryString> writer =
+        new RowsWriter<>(MockPrimitiveCodec.INSTANCE, METADATA, PROTOCOL_VERSION, 1024);
+    Rows decoded = decode(writer.finish(null));
+    assertThat(decoded.getData()).isEmpty();
+    assertThat(decoded.getMetadata().columnCount).isEqualTo(2);
+  }
+
+  @Test
+  public void should_send_page_in_response_frame() {
+    RowsWriter<MockBinaryString> writer =
+        new RowsWriter<>(MockPrimitiveCodec.INSTANCE, METADATA, PROTOCOL_VERSION, 1024);
+    writer.addRow(bytes("0x11"), bytes("0x12"));
+    Frame response =
+        Frame.forResponse(
+            PROTOCOL_VERSION,
+            1,
+            null,
+            Frame.NO_PAYLOAD,
+            Collections.emptyList(),
+            writer.finish(bytes("0xcafe")));
+
+    MockBinaryString encoded =
+        FrameCodec.defaultServer(MockPrimitiveCodec.INSTANCE, Compressor.none()).encode(response);
+    Frame decoded =
+        FrameCodec.defaultClient(MockPrimitiveCodec.INSTANCE, Compressor.none()).decode(encoded);
+
+    Rows rows = (Rows) decoded.message;
+    assertThat(rows.getMetadata().pagingState).isEqualTo(bytes("0xcafe"));
+    assertThat(rows.getData())
+        .containsExactly(NullAllowingImmutableList.of(bytes("0x11"), bytes("0x12")));
+  }
+
+  @Test
+  public void should_fail_if_wrong_number_of_values() {
+    RowsWriter<MockBinaryString> writer =
+        new RowsWriter<>(MockPrimitiveCodec.INSTANCE, METADATA, PROTOCOL_VERSION, 1024);
+    assertThatThrownBy(() -> writer.addRow(bytes("0x11")))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("Expected 2 values, got 1");
+  }
+
+  @Test
+  public void should_fail_if_finished_twice() {
+    RowsWriter<MockBinaryString> writer =
+        new RowsWriter<>(MockPrimitiveCodec.INSTANCE, METADATA, PROTOCOL_VERSION, 1024);
+    writer.finish(null);
+    assertThatThrownBy(() -> writer.finish(null)).isInstanceOf(IllegalStateException.class);
+  }
+
+  private static Rows decode(RawMessage<MockBinaryString> page) {
+    return (Rows) new Result.Codec(PROTOCOL_VERSION).decode(page.body, MockPrimitiveCodec.INSTANCE);
+  }
+
+  private static ByteBuffer bytes(String hex) {
+    return Bytes.fromHexString(hex);
+  }
+}
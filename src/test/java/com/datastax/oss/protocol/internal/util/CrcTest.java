@@ -0,0 +1,47 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.datastax.oss.protocol.internal.binary.MockBinaryString;
+import com.datastax.oss.protocol.internal.binary.MockPrimitiveCodec;
+import java.util.zip.CRC32;
+import org.junit.Test;
+
+public class CrcTest {
+
+  private static final MockBinaryString PAYLOAD =
+      new MockBinaryString().byte_(0x01).byte_(0x02).byte_(0x03);
+
+  @Test
+  public void should_compute_same_crc32_with_caller_owned_instance() {
+    int expected = Crc.computeCrc32(PAYLOAD, MockPrimitiveCodec.INSTANCE);
+
+    CRC32 crc = new CRC32();
+    assertThat(Crc.computeCrc32(PAYLOAD, MockPrimitiveCodec.INSTANCE, crc)).isEqualTo(expected);
+    // The instance is reset between calls
+    assertThat(Crc.computeCrc32(PAYLOAD, MockPrimitiveCodec.INSTANCE, crc)).isEqualTo(expected);
+  }
+
+  @Test
+  public void should_create_initialized_crc32() {
+    CRC32 crc = Crc.newCrc32();
+    MockPrimitiveCodec.INSTANCE.updateCrc(PAYLOAD, crc);
+    assertThat((int) crc.getValue())
+        .isEqualTo(Crc.computeCrc32(PAYLOAD, MockPrimitiveCodec.INSTANCE));
+  }
+}
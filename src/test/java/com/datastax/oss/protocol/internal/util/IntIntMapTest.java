@@ -38,4 +38,40 @@ public class IntIntMapTest {
     assertThat(map.get(2, 1)).isEqualTo("foo21");
     assertThat(map.get(3, 1)).isEqualTo("foo31");
   }
+
+  @Test
+  public void should_return_null_for_missing_entries() {
+    IntIntMap<String> map =
+        IntIntMap.<String>builder().put(3, 1, "foo31").put(65, 255, "foo65_255").build();
+
+    assertThat(map.get(65, 255)).isEqualTo("foo65_255");
+    assertThat(map.get(3, 255)).isNull();
+    assertThat(map.get(3, 2)).isNull();
+    assertThat(map.get(4, 1)).isNull();
+    assertThat(map.get(66, 1)).isNull();
+    assertThat(map.get(1, 256)).isNull();
+  }
+
+  @Test
+  public void should_handle_empty_map() {
+    IntIntMap<String> map = IntIntMap.<String>builder().build();
+    assertThat(map.get(0, 0)).isNull();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void should_fail_on_duplicate_key() {
+    IntIntMap.<String>builder().put(1, 1, "foo").put(1, 1, "bar");
+  }
+
+  @Test
+  public void should_replace_existing_key() {
+    IntIntMap<String> map =
+        IntIntMap.<String>builder()
+            .put(1, 1, "foo")
+            .replace(1, 1, "bar")
+            .replace(2, 1, "baz")
+            .build();
+    assertThat(map.get(1, 1)).isEqualTo("bar");
+    assertThat(map.get(2, 1)).isEqualTo("baz");
+  }
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright DataStax, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.datastax.oss.protocol.internal.FrameCodec;
+import com.datastax.oss.protocol.internal.Segment;
+import com.datastax.oss.protocol.internal.SegmentCodec;
+import java.nio.ByteBuffer;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SizeClassPoolTest {
+
+  private SizeClassPool<ByteBuffer> pool;
+
+  @Before
+  public void setup() {
+    pool =
+        new SizeClassPool<>(
+            new int[] {16, 256}, 2, ByteBuffer::allocate, ByteBuffer::capacity, ByteBuffer::clear);
+  }
+
+  @Test
+  public void should_allocate_smallest_class_that_fits() {
+    assertThat(pool.acquire(0).capacity()).isEqualTo(16);
+    assertThat(pool.acquire(9).capacity()).isEqualTo(16);
+    assertThat(pool.acquire(16).capacity()).isEqualTo(16);
+    assertThat(pool.acquire(17).capacity()).isEqualTo(256);
+  }
+
+  @Test
+  public void should_allocate_exact_size_above_largest_class() {
+    ByteBuffer buffer = pool.acquire(1000);
+    assertThat(buffer.capacity()).isEqualTo(1000);
+    assertThat(pool.release(buffer)).isFalse();
+  }
+
+  @Test
+  public void should_reuse_released_buffer() {
+    ByteBuffer buffer = pool.acquire(9);
+    buffer.putInt(1);
+    assertThat(pool.release(buffer)).isTrue();
+    assertThat(pool.pooledCount(9)).isEqualTo(1);
+
+    ByteBuffer reused = pool.acquire(12);
+    assertThat(reused).isSameAs(buffer);
+    assertThat(reused.position()).isEqualTo(0);
+    assertThat(pool.pooledCount(9)).isEqualTo(0);
+  }
+
+  @Test
+  public void should_bound_free_buffers_per_class() {
+    assertThat(pool.release(ByteBuffer.allocate(16))).isTrue();
+    assertThat(pool.release(ByteBuffer.allocate(16))).isTrue();
+    assertThat(pool.release(ByteBuffer.allocate(16))).isFalse();
+    assertThat(pool.pooledCount(16)).isEqualTo(2);
+    assertThat(pool.release(ByteBuffer.allocate(256))).isTrue();
+  }
+
+  @Test
+  public void should_pool_full_segments_with_default_classes() {
+    SizeClassPool<ByteBuffer> defaultPool =
+        new SizeClassPool<>(
+            SizeClassPool.defaultSizeClasses(),
+            1,
+            ByteBuffer::allocate,
+            ByteBuffer::capacity,
+            ByteBuffer::clear);
+    // Compressed header, CRC24, maximum payload, CRC32
+    int fullSegmentLength =
+        5
+            + SegmentCodec.CRC24_LENGTH
+            + Segment.PROTOCOL_MAX_PAYLOAD_LENGTH
+            + SegmentCodec.CRC32_LENGTH;
+
+    ByteBuffer buffer = defaultPool.acquire(fullSegmentLength);
+    assertThat(buffer.capacity()).isGreaterThanOrEqualTo(fullSegmentLength);
+    assertThat(defaultPool.release(buffer)).isTrue();
+    assertThat(defaultPool.acquire(fullSegmentLength)).isSameAs(buffer);
+  }
+
+  @Test
+  public void should_return_copy_of_default_size_classes() {
+    int[] classes = SizeClassPool.defaultSizeClasses();
+    classes[0] = 1;
+    assertThat(SizeClassPool.defaultSizeClasses()[0]).isEqualTo(16);
+  }
+
+  @Test
+  public void should_serve_fixed_size_hints_from_smallest_default_class() {
+    // Classes are selected on the size only, these are the sizes that come with the fixed-size
+    // hints (FRAME_HEADER, SEGMENT_HEADER with and without compression, SEGMENT_TRAILER)
+    int[] fixedSizes = {
+      FrameCodec.V3_ENCODED_HEADER_SIZE,
+      5 + SegmentCodec.CRC24_LENGTH,
+      3 + SegmentCodec.CRC24_LENGTH,
+      SegmentCodec.CRC32_LENGTH
+    };
+    SizeClassPool<ByteBuffer> defaultPool =
+        new SizeClassPool<>(
+            SizeClassPool.defaultSizeClasses(),
+            1,
+            ByteBuffer::allocate,
+            ByteBuffer::capacity,
+            ByteBuffer::clear);
+    for (int size : fixedSizes) {
+      assertThat(defaultPool.acquire(size).capacity()).isEqualTo(16);
+    }
+  }
+
+  @Test
+  public void should_detect_double_release() {
+    ByteBuffer buffer = pool.acquire(9);
+    assertThat(pool.release(buffer)).isTrue();
+    // Assertions are enabled in tests
+    assertThatThrownBy(() -> pool.release(buffer))
+        .isInstanceOf(AssertionError.class)
+        .hasMessageContaining("Buffer released twice");
+    assertThat(pool.pooledCount(9)).isEqualTo(1);
+    // An equal but distinct buffer is not a double release
+    assertThat(pool.release(ByteBuffer.allocate(16))).isTrue();
+  }
+
+  @Test
+  public void should_not_pool_buffer_that_does_not_match_a_class() {
+    assertThat(pool.release(ByteBuffer.allocate(20))).isFalse();
+    assertThat(pool.pooledCount(20)).isEqualTo(0);
+  }
+
+  @Test
+  public void should_fail_if_size_classes_not_increasing() {
+    assertThatThrownBy(
+            () ->
+                new SizeClassPool<>(
+                    new int[] {256, 16},
+                    2,
+                    ByteBuffer::allocate,
+                    ByteBuffer::capacity,
+                    ByteBuffer::clear))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("strictly increasing");
+  }
+}